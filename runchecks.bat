@@ -0,0 +1,7 @@
+@echo off
+
+echo BUILDING
+javac -d .\bin .\src\xmlparse\*.java
+javac -cp .\bin -d .\bin\test .\test\xmlparse\*.java
+echo RUNNING CHECKS
+java -cp bin;bin/test xmlparse.XMLCheck %*
\ No newline at end of file
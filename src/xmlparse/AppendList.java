@@ -0,0 +1,145 @@
+package xmlparse;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+// Growable array for concurrent mode, where lists are only ever appended to
+//
+// Appends take a write lock and are amortized O(1), unlike a copy-on-write
+// list which copies on every append. Reads, including taking an iterator,
+// are optimistic and only fall back to a read lock if an append raced with
+// them. Iterators walk the elements present when they were created.
+class AppendList<E> extends AbstractList<E>
+{
+    private final StampedLock lock;
+    private Object[] elements;
+    private int size;
+
+    AppendList(Collection<? extends E> c)
+    {
+        lock = new StampedLock();
+        elements = c.toArray();
+        size = elements.length;
+
+        if (elements.length == 0)
+            elements = new Object[4];
+    }
+
+    public boolean add(E e)
+    {
+        long stamp = lock.writeLock();
+        try
+        {
+            if (size == elements.length)
+                elements = Arrays.copyOf(elements, size * 2);
+
+            elements[size++] = e;
+            return true;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int index)
+    {
+        // An append racing this can leave a new size with the old array,
+        // so check both before indexing; validate rejects the result
+        long stamp = lock.tryOptimisticRead();
+        Object[] arr = elements;
+        int n = size;
+        Object e = (index >= 0 && index < n && index < arr.length) ? arr[index] : null;
+
+        if (!lock.validate(stamp))
+        {
+            stamp = lock.readLock();
+            try
+            {
+                arr = elements;
+                n = size;
+                e = (index >= 0 && index < n) ? arr[index] : null;
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        if (index < 0 || index >= n)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + n);
+
+        return (E)e;
+    }
+
+    public int size()
+    {
+        long stamp = lock.tryOptimisticRead();
+        int n = size;
+
+        if (!lock.validate(stamp))
+        {
+            stamp = lock.readLock();
+            try
+            {
+                n = size;
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return n;
+    }
+
+    public Iterator<E> iterator()
+    {
+        // Elements are never moved or removed, so the array and size seen
+        // now stay a valid snapshot even if the array is later replaced
+        long stamp = lock.tryOptimisticRead();
+        Object[] snapshot = elements;
+        int count = size;
+
+        if (!lock.validate(stamp))
+        {
+            stamp = lock.readLock();
+            try
+            {
+                snapshot = elements;
+                count = size;
+            }
+            finally
+            {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        final Object[] arr = snapshot;
+        final int n = count;
+
+        return new Iterator<E>()
+        {
+            private int i = 0;
+
+            public boolean hasNext()
+            {
+                return i < n;
+            }
+
+            @SuppressWarnings("unchecked")
+            public E next()
+            {
+                if (i >= n)
+                    throw new NoSuchElementException();
+
+                return (E)arr[i++];
+            }
+        };
+    }
+}
@@ -0,0 +1,245 @@
+package xmlparse;
+
+// Parses numbers straight from the characters of a String, without
+// trimming or boxing
+//
+// Surrounding whitespace is skipped. On malformed or out of range input
+// the default is returned, and ok[0] is set to false when ok is given.
+// Doubles are plain decimals with an optional exponent, NaN or Infinity.
+// Java's float and double suffixes and hex literals are malformed.
+class NumberParse
+{
+    private NumberParse()
+    {
+    }
+
+    static int parseInt(String s, int def, boolean[] ok)
+    {
+        return (int)parseLong(s, def, Integer.MIN_VALUE, Integer.MAX_VALUE, ok);
+    }
+
+    static long parseLong(String s, long def, boolean[] ok)
+    {
+        return parseLong(s, def, Long.MIN_VALUE, Long.MAX_VALUE, ok);
+    }
+
+    private static long parseLong(String s, long def, long min, long max, boolean[] ok)
+    {
+        if (ok != null)
+            ok[0] = false;
+
+        if (s == null)
+            return def;
+
+        int i = skipWS(s, 0);
+        int end = trimEnd(s, i);
+        if (i == end)
+            return def;
+
+        boolean neg = false;
+        char c = s.charAt(i);
+        if (c == '-' || c == '+')
+        {
+            neg = (c == '-');
+            if (++i == end)
+                return def;
+        }
+
+        // Accumulate negatively so the minimum fits
+        long limit = neg ? min : -max;
+        long multmin = limit / 10;
+        long v = 0;
+        for (; i < end; ++i)
+        {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9 || v < multmin)
+                return def;
+
+            v *= 10;
+            if (v < limit + d)
+                return def;
+            v -= d;
+        }
+
+        if (ok != null)
+            ok[0] = true;
+        return neg ? v : -v;
+    }
+
+    static double parseDouble(String s, double def, boolean[] ok)
+    {
+        if (ok != null)
+            ok[0] = false;
+
+        if (s == null)
+            return def;
+
+        int i = skipWS(s, 0);
+        int end = trimEnd(s, i);
+        if (i == end)
+            return def;
+
+        int start = i;
+        boolean neg = false;
+        char c = s.charAt(i);
+        if (c == '-' || c == '+')
+        {
+            neg = (c == '-');
+            ++i;
+        }
+        int body = i;
+
+        // Fast path for plain decimals whose digits and power of ten are both
+        // exact doubles, where one division rounds correctly
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean simple = true;
+
+        for (; i < end; ++i)
+        {
+            c = s.charAt(i);
+            if (c >= '0' && c <= '9')
+            {
+                if (mantissa >= (1L << 53) / 10)
+                {
+                    simple = false;
+                    break;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                ++digits;
+                if (dot)
+                    ++scale;
+            }
+            else if (c == '.' && !dot)
+            {
+                dot = true;
+            }
+            else
+            {
+                simple = false;
+                break;
+            }
+        }
+
+        if (simple && digits > 0 && scale < POW10.length)
+        {
+            if (ok != null)
+                ok[0] = true;
+
+            double v = mantissa / POW10[scale];
+            return neg ? -v : v;
+        }
+
+        // Exponents, long mantissas, NaN and the like, checked first as
+        // Double.parseDouble would also take suffixes and hex
+        if (!decimal(s, body, end))
+            return def;
+
+        try
+        {
+            double v = Double.parseDouble(s.substring(start, end));
+            if (ok != null)
+                ok[0] = true;
+            return v;
+        }
+        catch (NumberFormatException e)
+        {
+            return def;
+        }
+    }
+
+    static boolean parseBoolean(String s, boolean def, boolean[] ok)
+    {
+        if (ok != null)
+            ok[0] = false;
+
+        if (s == null)
+            return def;
+
+        int i = skipWS(s, 0);
+        int end = trimEnd(s, i);
+
+        boolean v;
+        if (s.regionMatches(i, "true", 0, 4) && end - i == 4)
+            v = true;
+        else if (s.regionMatches(i, "false", 0, 5) && end - i == 5)
+            v = false;
+        else
+            return def;
+
+        if (ok != null)
+            ok[0] = true;
+        return v;
+    }
+
+    // Whether s from begin to end is digits with an optional fraction and
+    // exponent, NaN or Infinity
+    private static boolean decimal(String s, int begin, int end)
+    {
+        if ((end - begin == 3 && s.startsWith("NaN", begin)) ||
+            (end - begin == 8 && s.startsWith("Infinity", begin)))
+            return true;
+
+        int i = skipDigits(s, begin, end);
+        int digits = i - begin;
+
+        if (i < end && s.charAt(i) == '.')
+        {
+            int j = skipDigits(s, i + 1, end);
+            digits += j - (i + 1);
+            i = j;
+        }
+
+        if (digits == 0)
+            return false;
+
+        if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E'))
+        {
+            if (++i < end && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+                ++i;
+
+            int j = skipDigits(s, i, end);
+            if (j == i)
+                return false;
+            i = j;
+        }
+
+        return i == end;
+    }
+
+    private static int skipDigits(String s, int i, int end)
+    {
+        while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+            ++i;
+        return i;
+    }
+
+    private static final double[] POW10 =
+    {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20,
+        1e21, 1e22
+    };
+
+    private static int skipWS(String s, int i)
+    {
+        while (i < s.length() && isWS(s.charAt(i)))
+            ++i;
+        return i;
+    }
+
+    private static int trimEnd(String s, int begin)
+    {
+        int end = s.length();
+        while (end > begin && isWS(s.charAt(end - 1)))
+            --end;
+        return end;
+    }
+
+    private static boolean isWS(char c)
+    {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+    }
+}
@@ -0,0 +1,716 @@
+package xmlparse;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+import java.io.IOException;
+
+// A read-only document kept outside the Java heap
+//
+// Node structure and text live in direct buffers addressed by long offsets,
+// so the garbage collector sees a handful of buffer objects however large
+// the document is. Only the table of distinct element and attribute names
+// stays on the heap. Strings are decoded on each access.
+//
+// Layout, all values 8-byte aligned:
+//   Node:     name index, attribute count, child count (ints), unused int
+//             children address (long)
+//             attributes, 16 bytes each: name index (int), unused int,
+//                                        value address (long)
+//   Children: 8 bytes each, node address, or string address + 1
+//   String:   byte length (int), UTF-8 bytes
+//
+// Storage grows in 4MB chunks of direct memory, which counts against
+// -XX:MaxDirectMemorySize rather than the heap.
+//
+// close frees the memory at once through sun.misc.Unsafe.invokeCleaner
+// (module jdk.unsupported), or leaves it to the garbage collector where
+// that isn't available. Reads may run on any number of threads, and
+// alongside close: each read holds a read lock, and close waits for the
+// reads in flight before freeing anything. Reads that start once close
+// has begun throw IllegalStateException.
+public class OffHeapXML implements AutoCloseable
+{
+    private static final int CHUNK_SHIFT = 22;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int NODE_HEADER = 24;
+    private static final int ATTRIB_SIZE = 16;
+    private static final int CHILD_SIZE = 8;
+
+    private final StampedLock lock;
+    private volatile boolean closed;
+    private volatile ByteBuffer[] chunks;
+    private int numChunks;
+    private long top;
+
+    private String[] names;
+    private long root;
+
+    private OffHeapXML()
+    {
+        lock = new StampedLock();
+        closed = false;
+        chunks = new ByteBuffer[16];
+        numChunks = 0;
+        top = 0;
+
+        names = null;
+        root = 0;
+    }
+
+    // Loading
+
+    // Copies a tree off the heap, after which the tree can be dropped
+    public static OffHeapXML copyOf(XMLStruct xml)
+    {
+        OffHeapXML doc = new OffHeapXML();
+
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        doc.root = doc.copyNode(xml, ids);
+
+        doc.names = new String[ids.size()];
+        for (Map.Entry<String, Integer> e : ids.entrySet())
+            doc.names[e.getValue()] = e.getKey();
+
+        return doc;
+    }
+
+    // Reads a file written by XMLStruct.saveToBinary straight into off-heap
+    // storage, without building the tree on the heap first. Files of any
+    // size are streamed.
+    public static OffHeapXML loadBinary(Path path) throws XMLStruct.BadSyntaxException
+    {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            XMLBinary.Reader r = new XMLBinary.Reader(fc, 1 << 20);
+            OffHeapXML doc = new OffHeapXML();
+
+            try
+            {
+                r.readHeader();
+                doc.names = r.names;
+                doc.root = doc.readNode(r);
+            }
+            catch (BufferUnderflowException e)
+            {
+                doc.close();
+                throw XMLBinary.Reader.truncated();
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+                doc.close();
+                throw e;
+            }
+
+            return doc;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        catch (XMLStruct.BadSyntaxException e)
+        {
+            XMLMetrics m = XMLStruct.getMetrics();
+            if (m != null)
+                m.error(e.getKind());
+            throw e;
+        }
+    }
+
+    private long copyNode(XMLStruct xml, Map<String, Integer> ids)
+    {
+        int numAttribs = xml.getNumAttribs();
+        int numChildren = xml.getNumChildren();
+        long node = alloc(NODE_HEADER + (long)numAttribs * ATTRIB_SIZE + (long)numChildren * CHILD_SIZE);
+        long a = node + NODE_HEADER;
+        long c = a + (long)numAttribs * ATTRIB_SIZE;
+
+        putInt(node, nameId(xml.getName(), ids));
+        putInt(node + 4, numAttribs);
+        putInt(node + 8, numChildren);
+        putLong(node + 16, c);
+
+        for (int i = 0; i < numAttribs; ++i, a += ATTRIB_SIZE)
+        {
+            putInt(a, nameId(xml.getAttribNameFromIndex(i), ids));
+            putLong(a + 8, addString(xml.getAttribValueFromIndex(i)));
+        }
+
+        for (int i = 0; i < numChildren; ++i, c += CHILD_SIZE)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child != null)
+                putLong(c, copyNode(child, ids));
+            else
+                putLong(c, addString(xml.getChildString(i)) + 1);
+        }
+
+        return node;
+    }
+
+    private static int nameId(String name, Map<String, Integer> ids)
+    {
+        Integer id = ids.get(name);
+        if (id == null)
+        {
+            id = ids.size();
+            ids.put(name, id);
+        }
+
+        return id;
+    }
+
+    private long readNode(XMLBinary.Reader r) throws IOException, XMLStruct.BadSyntaxException
+    {
+        r.enter();
+        int name = r.readNameIndex();
+
+        // Attribute values are read before the child count, so the
+        // children get an array of their own
+        int numAttribs = r.readCount(2);
+        long node = alloc(NODE_HEADER + (long)numAttribs * ATTRIB_SIZE);
+        long a = node + NODE_HEADER;
+
+        for (int i = 0; i < numAttribs; ++i, a += ATTRIB_SIZE)
+        {
+            putInt(a, r.readNameIndex());
+            putLong(a + 8, readString(r));
+        }
+
+        int numChildren = r.readCount(2);
+        long c = alloc((long)numChildren * CHILD_SIZE);
+
+        putInt(node, name);
+        putInt(node + 4, numAttribs);
+        putInt(node + 8, numChildren);
+        putLong(node + 16, c);
+
+        for (int i = 0; i < numChildren; ++i, c += CHILD_SIZE)
+        {
+            if (r.readTag() == XMLBinary.TAG_ELEMENT)
+                putLong(c, readNode(r));
+            else
+                putLong(c, readString(r) + 1);
+        }
+
+        r.leave();
+        return node;
+    }
+
+    private long readString(XMLBinary.Reader r) throws IOException, XMLStruct.BadSyntaxException
+    {
+        int len = r.readCount(1);
+        return addBytes(r.readBytes(len), len);
+    }
+
+    // Reading
+
+    public Node getRoot()
+    {
+        check();
+        return new Node(this, root);
+    }
+
+    // Bytes of off-heap storage in use
+    public long getSize()
+    {
+        return top;
+    }
+
+    public void close()
+    {
+        // New reads fail from here on, so the write lock only waits for
+        // reads in flight, not for a moment when no thread is reading
+        closed = true;
+
+        ByteBuffer[] c;
+        int n;
+
+        long stamp = lock.writeLock();
+        try
+        {
+            c = chunks;
+            n = numChunks;
+
+            chunks = null;
+            numChunks = 0;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+
+        if (c != null)
+        {
+            for (int i = 0; i < n; ++i)
+                Cleaner.free(c[i]);
+        }
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    // A view of one element, valid until the document is closed. Getters
+    // match XMLStruct's.
+    public static class Node
+    {
+        private final OffHeapXML doc;
+        private final long addr;
+
+        private Node(OffHeapXML _doc, long _addr)
+        {
+            doc = _doc;
+            addr = _addr;
+        }
+
+        // Each getter holds the document's read lock while it touches
+        // storage, and only calls unlocked helpers inside it
+
+        public String getName()
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                return doc.names[doc.getInt(addr)];
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public int getNumChildren()
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                return doc.getInt(addr + 8);
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public Node getChildElement(int index)
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                long c = childEntry(index);
+                if (c < 0 || (c & 1) != 0)
+                    return null;
+
+                return new Node(doc, c);
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public Node getChildElement(String name)
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                int numChildren = doc.getInt(addr + 8);
+                for (int i = 0; i < numChildren; ++i)
+                {
+                    long c = childEntry(i);
+                    if ((c & 1) == 0 && doc.names[doc.getInt(c)].equals(name))
+                        return new Node(doc, c);
+                }
+
+                return null;
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public String getChildString(int index)
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                long c = childEntry(index);
+                if (c < 0 || (c & 1) == 0)
+                    return null;
+
+                return doc.getString(c - 1);
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public String getChildString()
+        {
+            return getChildString(0);
+        }
+
+        public int getNumAttribs()
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                return doc.getInt(addr + 4);
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public String getAttribNameFromIndex(int index)
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                if (index < 0 || index >= doc.getInt(addr + 4))
+                    return null;
+
+                return doc.names[doc.getInt(attribEntry(index))];
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public String getAttribValueFromIndex(int index)
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                if (index < 0 || index >= doc.getInt(addr + 4))
+                    return null;
+
+                return doc.getString(doc.getLong(attribEntry(index) + 8));
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public String getAttribValueFromName(String str)
+        {
+            long stamp = doc.beginRead();
+            try
+            {
+                int numAttribs = doc.getInt(addr + 4);
+                for (int i = 0; i < numAttribs; ++i)
+                {
+                    long a = attribEntry(i);
+                    if (doc.names[doc.getInt(a)].equals(str))
+                        return doc.getString(doc.getLong(a + 8));
+                }
+
+                return null;
+            }
+            finally
+            {
+                doc.endRead(stamp);
+            }
+        }
+
+        public int getAttribInt(String name, int def)
+        {
+            return getAttribInt(name, def, null);
+        }
+
+        public int getAttribInt(String name, int def, boolean[] ok)
+        {
+            return NumberParse.parseInt(getAttribValueFromName(name), def, ok);
+        }
+
+        public long getAttribLong(String name, long def)
+        {
+            return getAttribLong(name, def, null);
+        }
+
+        public long getAttribLong(String name, long def, boolean[] ok)
+        {
+            return NumberParse.parseLong(getAttribValueFromName(name), def, ok);
+        }
+
+        public double getAttribDouble(String name, double def)
+        {
+            return getAttribDouble(name, def, null);
+        }
+
+        public double getAttribDouble(String name, double def, boolean[] ok)
+        {
+            return NumberParse.parseDouble(getAttribValueFromName(name), def, ok);
+        }
+
+        public boolean getAttribBoolean(String name, boolean def)
+        {
+            return getAttribBoolean(name, def, null);
+        }
+
+        public boolean getAttribBoolean(String name, boolean def, boolean[] ok)
+        {
+            return NumberParse.parseBoolean(getAttribValueFromName(name), def, ok);
+        }
+
+        public int getChildInt(int def)
+        {
+            return getChildInt(def, null);
+        }
+
+        public int getChildInt(int def, boolean[] ok)
+        {
+            return NumberParse.parseInt(getChildString(), def, ok);
+        }
+
+        public long getChildLong(long def)
+        {
+            return getChildLong(def, null);
+        }
+
+        public long getChildLong(long def, boolean[] ok)
+        {
+            return NumberParse.parseLong(getChildString(), def, ok);
+        }
+
+        public double getChildDouble(double def)
+        {
+            return getChildDouble(def, null);
+        }
+
+        public double getChildDouble(double def, boolean[] ok)
+        {
+            return NumberParse.parseDouble(getChildString(), def, ok);
+        }
+
+        public boolean getChildBoolean(boolean def)
+        {
+            return getChildBoolean(def, null);
+        }
+
+        public boolean getChildBoolean(boolean def, boolean[] ok)
+        {
+            return NumberParse.parseBoolean(getChildString(), def, ok);
+        }
+
+        // Copies this element and everything under it back onto the heap
+        public XMLStruct toXMLStruct()
+        {
+            XMLStruct xml = new XMLStruct(getName());
+
+            for (int i = 0; i < getNumAttribs(); ++i)
+                xml.addAttribute(getAttribNameFromIndex(i), getAttribValueFromIndex(i));
+
+            for (int i = 0; i < getNumChildren(); ++i)
+            {
+                Node child = getChildElement(i);
+                if (child != null)
+                    xml.addChild(child.toXMLStruct());
+                else
+                    xml.addChild(getChildString(i));
+            }
+
+            return xml;
+        }
+
+        public String toString()
+        {
+            return toXMLStruct().toString();
+        }
+
+        private long attribEntry(int index)
+        {
+            return addr + NODE_HEADER + (long)index * ATTRIB_SIZE;
+        }
+
+        // Raw child entry, or -1 when out of range
+        private long childEntry(int index)
+        {
+            int numChildren = doc.getInt(addr + 8);
+            if (index < 0 || index >= numChildren)
+                return -1;
+
+            return doc.getLong(doc.getLong(addr + 16) + (long)index * CHILD_SIZE);
+        }
+    }
+
+    // Private
+
+    // Unsafe.invokeCleaner bound to the Unsafe instance, loaded on first use
+    private static class Cleaner
+    {
+        private static final MethodHandle INVOKE = find();
+
+        private static MethodHandle find()
+        {
+            try
+            {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field f = unsafeClass.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+
+                return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(f.get(null));
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                return null;
+            }
+        }
+
+        public static void free(ByteBuffer buf)
+        {
+            if (INVOKE == null)
+                return;
+
+            try
+            {
+                INVOKE.invokeExact(buf);
+            }
+            catch (Throwable t)
+            {
+                // Left for the garbage collector
+            }
+        }
+    }
+
+    private long addString(String str)
+    {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        return addBytes(bytes, bytes.length);
+    }
+
+    private long addBytes(byte[] bytes, int len)
+    {
+        long s = alloc(4 + (long)len);
+        putInt(s, len);
+
+        long at = s + 4;
+        for (int off = 0; off < len; )
+        {
+            int n = Math.min(len - off, CHUNK_SIZE - offset(at));
+            chunk(at).put(offset(at), bytes, off, n);
+            off += n;
+            at += n;
+        }
+
+        return s;
+    }
+
+    private String getString(long s)
+    {
+        int len = getInt(s);
+        byte[] bytes = new byte[len];
+
+        long at = s + 4;
+        for (int off = 0; off < len; )
+        {
+            int n = Math.min(len - off, CHUNK_SIZE - offset(at));
+            chunk(at).get(offset(at), bytes, off, n);
+            off += n;
+            at += n;
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Everything is 8-byte aligned and chunks are a power of two, so no int
+    // or long ever straddles two chunks
+    private long alloc(long size)
+    {
+        long addr = top;
+        top += (size + 7) & ~7L;
+
+        while (((long)numChunks << CHUNK_SHIFT) < top)
+        {
+            if (numChunks == chunks.length)
+                chunks = Arrays.copyOf(chunks, numChunks * 2);
+
+            chunks[numChunks++] = ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.nativeOrder());
+        }
+
+        return addr;
+    }
+
+    private void check()
+    {
+        if (closed)
+            throw new IllegalStateException("Off-heap document is closed");
+    }
+
+    // Read locks are never nested, so close, which waits for them, can't
+    // deadlock against a reader. Package-private for XMLCheck.
+    long beginRead()
+    {
+        long stamp = lock.readLock();
+        if (closed)
+        {
+            lock.unlockRead(stamp);
+            check();
+        }
+
+        return stamp;
+    }
+
+    void endRead(long stamp)
+    {
+        lock.unlockRead(stamp);
+    }
+
+    private ByteBuffer chunk(long addr)
+    {
+        ByteBuffer[] c = chunks;
+        if (c == null)
+            check();
+
+        return c[(int)(addr >>> CHUNK_SHIFT)];
+    }
+
+    private static int offset(long addr)
+    {
+        return (int)(addr & CHUNK_MASK);
+    }
+
+    private int getInt(long addr)
+    {
+        return chunk(addr).getInt(offset(addr));
+    }
+
+    private long getLong(long addr)
+    {
+        return chunk(addr).getLong(offset(addr));
+    }
+
+    private void putInt(long addr, int v)
+    {
+        chunk(addr).putInt(offset(addr), v);
+    }
+
+    private void putLong(long addr, long v)
+    {
+        chunk(addr).putLong(offset(addr), v);
+    }
+}
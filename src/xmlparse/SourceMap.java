@@ -0,0 +1,73 @@
+package xmlparse;
+
+import java.util.Arrays;
+
+// Newline index used to turn character offsets into lines and columns
+//
+// A parse that tracks positions feeds every line of input through
+// addChunk. Errors from other parses get a map covering just the chunk
+// they happened in, which is only scanned if their line is asked for.
+class SourceMap
+{
+    private long[] lineStarts;
+    private int numLines;
+    private int firstLine;
+
+    private String pending;
+    private long pendingOffset;
+
+    SourceMap()
+    {
+        this(0, 0, null, 0);
+    }
+
+    SourceMap(int linesBefore, long lineStart, String chunk, long chunkOffset)
+    {
+        lineStarts = new long[16];
+        lineStarts[0] = lineStart;
+        numLines = 1;
+        firstLine = linesBefore;
+
+        pending = chunk;
+        pendingOffset = chunkOffset;
+    }
+
+    void addChunk(String str, long offset)
+    {
+        for (int k = str.indexOf('\n'); k >= 0; k = str.indexOf('\n', k + 1))
+        {
+            if (numLines == lineStarts.length)
+                lineStarts = Arrays.copyOf(lineStarts, numLines * 2);
+
+            lineStarts[numLines++] = offset + k + 1;
+        }
+    }
+
+    // 1-based line containing the offset
+    int lineOf(long offset)
+    {
+        return firstLine + lineIndex(offset) + 1;
+    }
+
+    // 1-based column of the offset within its line
+    int columnOf(long offset)
+    {
+        return (int)(offset - lineStarts[lineIndex(offset)]) + 1;
+    }
+
+    private int lineIndex(long offset)
+    {
+        if (pending != null)
+        {
+            String str = pending;
+            pending = null;
+            addChunk(str, pendingOffset);
+        }
+
+        int i = Arrays.binarySearch(lineStarts, 0, numLines, offset);
+        if (i < 0)
+            i = -i - 2;
+
+        return Math.max(i, 0);
+    }
+}
@@ -0,0 +1,14 @@
+package xmlparse;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Binds a field to the attribute with this name, see XMLBinder
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface XMLAttribute
+{
+    String value();
+}
@@ -0,0 +1,371 @@
+package xmlparse;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Binary encoding of an XMLStruct tree
+//
+// Files come out about the size of the text, since only names are shared,
+// but load without any text scanning. XMLCheck measures the load time
+// against parseFromFile.
+//
+// Layout:
+//   "XMLB" version
+//   name count, names           (element and attribute names, deduplicated)
+//   root node
+// Node:
+//   name index
+//   attribute count, (name index, value string) pairs
+//   child count, (tag, node or string) entries
+//
+// Counts, indices and string lengths are unsigned varints, strings are UTF-8.
+//
+// Files are read through a small buffer rather than mapped, since a
+// mapping lives until it is collected and, on Windows, keeps the file
+// from being replaced or deleted until then.
+class XMLBinary
+{
+    static final byte[] MAGIC = {'X', 'M', 'L', 'B'};
+    static final int VERSION = 1;
+
+    // Deeper than the text parser gets on a 1MB thread stack, the default
+    // on Windows, and shallow enough for both loaders to recurse on one
+    static final int MAX_DEPTH = 1 << 11;
+
+    static final int TAG_ELEMENT = 0;
+    static final int TAG_TEXT = 1;
+
+    private XMLBinary()
+    {
+    }
+
+    // Writing
+
+    static void write(XMLStruct xml, Path path) throws IOException
+    {
+        Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+        collectNames(xml, names);
+
+        try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))
+        {
+            os.write(MAGIC);
+            os.write(VERSION);
+
+            writeVarint(os, names.size());
+            for (String name : names.keySet())
+                writeString(os, name);
+
+            writeNode(os, xml, names);
+        }
+    }
+
+    private static void collectNames(XMLStruct xml, Map<String, Integer> names)
+    {
+        addName(xml.getName(), names);
+
+        for (int i = 0; i < xml.getNumAttribs(); ++i)
+            addName(xml.getAttribNameFromIndex(i), names);
+
+        for (int i = 0; i < xml.getNumChildren(); ++i)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child != null)
+                collectNames(child, names);
+        }
+    }
+
+    private static void addName(String name, Map<String, Integer> names)
+    {
+        if (!names.containsKey(name))
+            names.put(name, names.size());
+    }
+
+    private static void writeNode(OutputStream os, XMLStruct xml, Map<String, Integer> names) throws IOException
+    {
+        writeVarint(os, names.get(xml.getName()));
+
+        int numAttribs = xml.getNumAttribs();
+        writeVarint(os, numAttribs);
+        for (int i = 0; i < numAttribs; ++i)
+        {
+            writeVarint(os, names.get(xml.getAttribNameFromIndex(i)));
+            writeString(os, xml.getAttribValueFromIndex(i));
+        }
+
+        int numChildren = xml.getNumChildren();
+        writeVarint(os, numChildren);
+        for (int i = 0; i < numChildren; ++i)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child != null)
+            {
+                os.write(TAG_ELEMENT);
+                writeNode(os, child, names);
+            }
+            else
+            {
+                os.write(TAG_TEXT);
+                writeString(os, xml.getChildString(i));
+            }
+        }
+    }
+
+    static void writeVarint(OutputStream os, int v) throws IOException
+    {
+        while ((v & ~0x7F) != 0)
+        {
+            os.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        os.write(v);
+    }
+
+    static void writeString(OutputStream os, String str) throws IOException
+    {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(os, bytes.length);
+        os.write(bytes);
+    }
+
+    // Reading
+
+    static XMLStruct read(Path path) throws IOException, XMLStruct.BadSyntaxException
+    {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return new Reader(fc, 1 << 16).readDocument();
+        }
+    }
+
+    // Decodes one document from a channel through a buffer that is refilled
+    // as it is consumed. Shared with the off-heap loader.
+    static class Reader
+    {
+        private final ByteBuffer buf;
+        private final ReadableByteChannel channel;
+        private byte[] scratch;
+        private int depth;
+        String[] names;
+
+        // Bytes of the channel not yet read into the buffer, when known
+        private long unread;
+
+        Reader(ReadableByteChannel _channel, int bufferSize) throws IOException
+        {
+            buf = ByteBuffer.allocate(bufferSize);
+            buf.limit(0);
+            channel = _channel;
+            scratch = new byte[256];
+            depth = 0;
+            names = null;
+
+            if (channel instanceof SeekableByteChannel)
+            {
+                SeekableByteChannel sc = (SeekableByteChannel)channel;
+                unread = sc.size() - sc.position();
+            }
+            else
+            {
+                unread = -1;
+            }
+        }
+
+        XMLStruct readDocument() throws IOException, XMLStruct.BadSyntaxException
+        {
+            try
+            {
+                readHeader();
+                return readNode();
+            }
+            catch (BufferUnderflowException e)
+            {
+                throw truncated();
+            }
+        }
+
+        static XMLStruct.BadSyntaxException truncated()
+        {
+            return new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Truncated binary XML");
+        }
+
+        void readHeader() throws IOException, XMLStruct.BadSyntaxException
+        {
+            need(MAGIC.length + 1);
+            for (int i = 0; i < MAGIC.length; ++i)
+            {
+                if (buf.get() != MAGIC[i])
+                    throw new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Not a binary XML file");
+            }
+
+            int version = buf.get();
+            if (version != VERSION)
+                throw new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Unsupported binary XML version: " + version);
+
+            int numNames = readCount(1);
+            names = new String[numNames];
+            for (int i = 0; i < numNames; ++i)
+                names[i] = readString();
+        }
+
+        private XMLStruct readNode() throws IOException, XMLStruct.BadSyntaxException
+        {
+            enter();
+            XMLStruct xml = new XMLStruct(readName());
+
+            int numAttribs = readCount(2);
+            for (int i = 0; i < numAttribs; ++i)
+            {
+                String name = readName();
+                xml.addAttribute(name, readString());
+            }
+
+            int numChildren = readCount(2);
+            for (int i = 0; i < numChildren; ++i)
+            {
+                int tag = readTag();
+                if (tag == TAG_ELEMENT)
+                    xml.addChild(readNode());
+                else
+                    xml.addChild(readString());
+            }
+
+            leave();
+            return xml;
+        }
+
+        // Bracket every node, so a corrupt file can't nest the loader off
+        // the stack
+        void enter() throws XMLStruct.BadSyntaxException
+        {
+            if (++depth > MAX_DEPTH)
+                throw new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Binary XML nested deeper than " + MAX_DEPTH);
+        }
+
+        void leave()
+        {
+            --depth;
+        }
+
+        String readName() throws IOException, XMLStruct.BadSyntaxException
+        {
+            return names[readNameIndex()];
+        }
+
+        int readNameIndex() throws IOException, XMLStruct.BadSyntaxException
+        {
+            int index = readVarint();
+            if (index >= names.length)
+                throw new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Invalid name index in binary XML: " + index);
+
+            return index;
+        }
+
+        int readTag() throws IOException, XMLStruct.BadSyntaxException
+        {
+            need(1);
+            int tag = buf.get();
+            if (tag != TAG_ELEMENT && tag != TAG_TEXT)
+                throw new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Invalid child tag in binary XML: " + tag);
+
+            return tag;
+        }
+
+        int readVarint() throws IOException, XMLStruct.BadSyntaxException
+        {
+            need(5);
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                int b = buf.get();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    if (v < 0)
+                        break;
+                    return v;
+                }
+            }
+
+            throw new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Malformed varint in binary XML");
+        }
+
+        // A count of entries that take at least minBytes each, checked
+        // against the input left before anything is sized from it
+        int readCount(int minBytes) throws IOException, XMLStruct.BadSyntaxException
+        {
+            int count = readVarint();
+            if ((long)count * minBytes > remaining())
+                throw new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT, "Count larger than the rest of the binary XML: " + count);
+
+            return count;
+        }
+
+        String readString() throws IOException, XMLStruct.BadSyntaxException
+        {
+            int len = readCount(1);
+            return new String(readBytes(len), 0, len, StandardCharsets.UTF_8);
+        }
+
+        // Reads len bytes into a scratch array that is reused by the next call
+        byte[] readBytes(int len) throws IOException, XMLStruct.BadSyntaxException
+        {
+            if (scratch.length < len)
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+
+            // Strings longer than the buffer are read in pieces
+            for (int off = 0; off < len; )
+            {
+                need(Math.min(len - off, buf.capacity()));
+
+                int n = Math.min(len - off, buf.remaining());
+                if (n == 0)
+                    throw new BufferUnderflowException();
+
+                buf.get(scratch, off, n);
+                off += n;
+            }
+
+            return scratch;
+        }
+
+        private long remaining()
+        {
+            if (unread < 0)
+                return Long.MAX_VALUE;
+
+            return buf.remaining() + unread;
+        }
+
+        // Makes at least n bytes available if the channel has them
+        private void need(int n) throws IOException
+        {
+            if (buf.remaining() >= n)
+                return;
+
+            buf.compact();
+            while (buf.position() < n)
+            {
+                int read = channel.read(buf);
+                if (read < 0)
+                    break;
+
+                if (unread >= 0)
+                    unread = Math.max(unread - read, 0);
+            }
+            buf.flip();
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package xmlparse;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+// Maps XMLStruct trees onto annotated classes and back
+//
+// A bound class needs a no-argument constructor. Its fields are bound with
+// @XMLAttribute, @XMLText or @XMLElement, and may be a String, int, long,
+// double, boolean (or their boxed forms), another bound class, or, for
+// @XMLElement, a List of any of those for repeated children. Repeated
+// children are always read into a new ArrayList, so the field must be
+// declared as List itself; other collection and map types are rejected.
+// A scalar @XMLElement field reads the first text child of that element.
+//
+// Each class is inspected once and compiled into a plan of method handles,
+// so binding after that does no reflection, and primitive fields are read
+// and written without boxing.
+public class XMLBinder
+{
+    private static final ClassValue<Plan> PLANS = new ClassValue<Plan>()
+    {
+        protected Plan computeValue(Class<?> cls)
+        {
+            return new Plan(cls);
+        }
+    };
+
+    private XMLBinder()
+    {
+    }
+
+    public static <T> T fromXML(XMLStruct xml, Class<T> cls) throws XMLStruct.BadSyntaxException
+    {
+        Plan plan = PLANS.get(cls);
+
+        if (plan.name != null && !plan.name.equals(xml.getName()))
+            throw invalid("Expected <" + plan.name + "> but found <" + xml.getName() + ">");
+
+        return cls.cast(plan.read(xml));
+    }
+
+    // Serialize with toString or XMLWriter
+    public static XMLStruct toXML(Object obj)
+    {
+        Plan plan = PLANS.get(obj.getClass());
+
+        if (plan.name == null)
+            throw new IllegalArgumentException(obj.getClass().getName() + " has no @XMLElement name");
+
+        return plan.write(obj, plan.name);
+    }
+
+    // Private
+
+    private enum Kind
+    {
+        STRING,
+        INT,
+        LONG,
+        DOUBLE,
+        BOOLEAN,
+        OBJECT
+    }
+
+    private enum Source
+    {
+        ATTRIBUTE,
+        TEXT,
+        ELEMENT,
+        LIST
+    }
+
+    private static class Binding
+    {
+        public String name;
+        public Source source;
+        public Kind kind;
+        public boolean boxed;
+        public Class<?> type;  // bound class for OBJECT
+
+        // Adapted to take and return the field's primitive type, or Object
+        public MethodHandle getter;
+        public MethodHandle setter;
+    }
+
+    private static class Plan
+    {
+        public final String name;
+        private final MethodHandle ctor;
+        private final Binding[] bindings;
+
+        public Plan(Class<?> cls)
+        {
+            XMLElement e = cls.getAnnotation(XMLElement.class);
+            name = (e != null) ? e.value() : null;
+
+            try
+            {
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(cls, MethodHandles.lookup());
+
+                ctor = lookup.findConstructor(cls, MethodType.methodType(void.class))
+                             .asType(MethodType.methodType(Object.class));
+
+                List<Binding> list = new ArrayList<Binding>();
+                addBindings(cls, lookup, list);
+                bindings = list.toArray(new Binding[0]);
+            }
+            catch (ReflectiveOperationException ex)
+            {
+                throw new IllegalArgumentException("Can't bind " + cls.getName() + ": " + ex.getMessage(), ex);
+            }
+        }
+
+        private static void addBindings(Class<?> cls, MethodHandles.Lookup lookup, List<Binding> list) throws ReflectiveOperationException
+        {
+            Class<?> sup = cls.getSuperclass();
+            if (sup != null && sup != Object.class)
+                addBindings(sup, MethodHandles.privateLookupIn(sup, lookup), list);
+
+            for (Field f : cls.getDeclaredFields())
+            {
+                Binding b = new Binding();
+
+                XMLAttribute att = f.getAnnotation(XMLAttribute.class);
+                XMLElement elem = f.getAnnotation(XMLElement.class);
+
+                if (att != null)
+                {
+                    b.source = Source.ATTRIBUTE;
+                    b.name = att.value();
+                }
+                else if (elem != null)
+                {
+                    b.source = (f.getType() == List.class) ? Source.LIST : Source.ELEMENT;
+                    b.name = elem.value();
+                }
+                else if (f.isAnnotationPresent(XMLText.class))
+                {
+                    b.source = Source.TEXT;
+                }
+                else
+                {
+                    continue;
+                }
+
+                if (Modifier.isStatic(f.getModifiers()) || Modifier.isFinal(f.getModifiers()))
+                    throw new IllegalArgumentException("Bound field must not be static or final: " + f);
+
+                Class<?> type = f.getType();
+                if (b.source == Source.LIST)
+                {
+                    Type gen = f.getGenericType();
+                    if (!(gen instanceof ParameterizedType) ||
+                        !(((ParameterizedType)gen).getActualTypeArguments()[0] instanceof Class))
+                        throw new IllegalArgumentException("List field needs a concrete item type: " + f);
+
+                    type = (Class<?>)((ParameterizedType)gen).getActualTypeArguments()[0];
+                }
+
+                b.kind = kindOf(type);
+                b.boxed = !type.isPrimitive();
+                b.type = type;
+
+                if ((b.source != Source.ELEMENT && b.source != Source.LIST) && b.kind == Kind.OBJECT)
+                    throw new IllegalArgumentException("Attributes and text must be scalar: " + f);
+
+                MethodHandle get = lookup.unreflectGetter(f);
+                MethodHandle set = lookup.unreflectSetter(f);
+
+                Class<?> slot = (b.source == Source.LIST || b.boxed) ? Object.class : type;
+                b.getter = get.asType(MethodType.methodType(slot, Object.class));
+                b.setter = set.asType(MethodType.methodType(void.class, Object.class, slot));
+
+                list.add(b);
+            }
+        }
+
+        private static Kind kindOf(Class<?> type)
+        {
+            if (type == String.class)
+                return Kind.STRING;
+            if (type == int.class || type == Integer.class)
+                return Kind.INT;
+            if (type == long.class || type == Long.class)
+                return Kind.LONG;
+            if (type == double.class || type == Double.class)
+                return Kind.DOUBLE;
+            if (type == boolean.class || type == Boolean.class)
+                return Kind.BOOLEAN;
+            if (type.isPrimitive() || type.isArray() || type.isInterface())
+                throw new IllegalArgumentException("Unsupported field type: " + type.getName());
+            if (Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type))
+                throw new IllegalArgumentException("Repeated children need a field declared as List, not " + type.getName());
+
+            return Kind.OBJECT;
+        }
+
+        // Reading
+
+        public Object read(XMLStruct xml) throws XMLStruct.BadSyntaxException
+        {
+            try
+            {
+                Object obj = (Object)ctor.invokeExact();
+
+                for (Binding b : bindings)
+                {
+                    switch (b.source)
+                    {
+                        case ATTRIBUTE:
+                        {
+                            String val = xml.getAttribValueFromName(b.name);
+                            if (val != null)
+                                setScalar(obj, b, val);
+                            break;
+                        }
+                        case TEXT:
+                        {
+                            String val = firstText(xml);
+                            if (val != null)
+                                setScalar(obj, b, val);
+                            break;
+                        }
+                        case ELEMENT:
+                        {
+                            XMLStruct child = xml.getChildElement(b.name);
+                            if (child == null)
+                                break;
+
+                            if (b.kind == Kind.OBJECT)
+                            {
+                                b.setter.invokeExact(obj, PLANS.get(b.type).read(child));
+                            }
+                            else
+                            {
+                                String val = firstText(child);
+                                setScalar(obj, b, (val != null) ? val : "");
+                            }
+                            break;
+                        }
+                        case LIST:
+                        {
+                            List<Object> items = new ArrayList<Object>();
+                            for (int i = 0; i < xml.getNumChildren(); ++i)
+                            {
+                                XMLStruct child = xml.getChildElement(i);
+                                if (child == null || !child.getName().equals(b.name))
+                                    continue;
+
+                                if (b.kind == Kind.OBJECT)
+                                {
+                                    items.add(PLANS.get(b.type).read(child));
+                                }
+                                else
+                                {
+                                    String val = firstText(child);
+                                    items.add(convert(b.kind, (val != null) ? val : ""));
+                                }
+                            }
+                            b.setter.invokeExact(obj, (Object)items);
+                            break;
+                        }
+                    }
+                }
+
+                return obj;
+            }
+            catch (XMLStruct.BadSyntaxException | RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        private static void setScalar(Object obj, Binding b, String val) throws Throwable
+        {
+            if (b.boxed)
+            {
+                b.setter.invokeExact(obj, convert(b.kind, val));
+                return;
+            }
+
+            switch (b.kind)
+            {
+                case INT:
+                    b.setter.invokeExact(obj, parseInt(val));
+                    break;
+                case LONG:
+                    b.setter.invokeExact(obj, parseLong(val));
+                    break;
+                case DOUBLE:
+                    b.setter.invokeExact(obj, parseDouble(val));
+                    break;
+                case BOOLEAN:
+                    b.setter.invokeExact(obj, parseBoolean(val));
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected kind " + b.kind);
+            }
+        }
+
+        private static Object convert(Kind kind, String val) throws XMLStruct.BadSyntaxException
+        {
+            switch (kind)
+            {
+                case STRING:
+                    return val;
+                case INT:
+                    return parseInt(val);
+                case LONG:
+                    return parseLong(val);
+                case DOUBLE:
+                    return parseDouble(val);
+                case BOOLEAN:
+                    return parseBoolean(val);
+                default:
+                    throw new IllegalStateException("Unexpected kind " + kind);
+            }
+        }
+
+        // Writing
+
+        public XMLStruct write(Object obj, String elemName)
+        {
+            XMLStruct xml = new XMLStruct(elemName);
+
+            try
+            {
+                for (Binding b : bindings)
+                {
+                    switch (b.source)
+                    {
+                        case ATTRIBUTE:
+                        {
+                            String val = getScalar(obj, b);
+                            if (val != null)
+                                xml.addAttribute(b.name, val);
+                            break;
+                        }
+                        case TEXT:
+                        {
+                            String val = getScalar(obj, b);
+                            if (val != null && !val.isEmpty())
+                                xml.addChild(val);
+                            break;
+                        }
+                        case ELEMENT:
+                        {
+                            if (b.kind == Kind.OBJECT)
+                            {
+                                Object val = (Object)b.getter.invokeExact(obj);
+                                if (val != null)
+                                    xml.addChild(PLANS.get(val.getClass()).write(val, b.name));
+                            }
+                            else
+                            {
+                                String val = getScalar(obj, b);
+                                if (val != null)
+                                    xml.addChild(scalarElement(b.name, val));
+                            }
+                            break;
+                        }
+                        case LIST:
+                        {
+                            List<?> items = (List<?>)(Object)b.getter.invokeExact(obj);
+                            if (items == null)
+                                break;
+
+                            for (Object item : items)
+                            {
+                                if (item == null)
+                                    continue;
+
+                                if (b.kind == Kind.OBJECT)
+                                    xml.addChild(PLANS.get(item.getClass()).write(item, b.name));
+                                else
+                                    xml.addChild(scalarElement(b.name, String.valueOf(item)));
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            catch (RuntimeException | Error e)
+            {
+                throw e;
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException(t);
+            }
+
+            return xml;
+        }
+
+        private static String getScalar(Object obj, Binding b) throws Throwable
+        {
+            if (b.boxed)
+            {
+                Object val = (Object)b.getter.invokeExact(obj);
+                return (val != null) ? val.toString() : null;
+            }
+
+            switch (b.kind)
+            {
+                case INT:
+                    return String.valueOf((int)b.getter.invokeExact(obj));
+                case LONG:
+                    return String.valueOf((long)b.getter.invokeExact(obj));
+                case DOUBLE:
+                    return String.valueOf((double)b.getter.invokeExact(obj));
+                case BOOLEAN:
+                    return String.valueOf((boolean)b.getter.invokeExact(obj));
+                default:
+                    throw new IllegalStateException("Unexpected kind " + b.kind);
+            }
+        }
+
+        private static XMLStruct scalarElement(String name, String val)
+        {
+            XMLStruct xml = new XMLStruct(name);
+            if (!val.isEmpty())
+                xml.addChild(val);
+            return xml;
+        }
+    }
+
+    private static String firstText(XMLStruct xml)
+    {
+        for (int i = 0; i < xml.getNumChildren(); ++i)
+        {
+            String text = xml.getChildString(i);
+            if (text != null)
+                return text;
+        }
+
+        return null;
+    }
+
+    private static int parseInt(String val) throws XMLStruct.BadSyntaxException
+    {
+        boolean[] ok = {false};
+        int v = NumberParse.parseInt(val, 0, ok);
+        if (!ok[0])
+            throw invalid("Not an int: " + val);
+        return v;
+    }
+
+    private static long parseLong(String val) throws XMLStruct.BadSyntaxException
+    {
+        boolean[] ok = {false};
+        long v = NumberParse.parseLong(val, 0, ok);
+        if (!ok[0])
+            throw invalid("Not a long: " + val);
+        return v;
+    }
+
+    private static double parseDouble(String val) throws XMLStruct.BadSyntaxException
+    {
+        boolean[] ok = {false};
+        double v = NumberParse.parseDouble(val, 0, ok);
+        if (!ok[0])
+            throw invalid("Not a double: " + val);
+        return v;
+    }
+
+    private static boolean parseBoolean(String val) throws XMLStruct.BadSyntaxException
+    {
+        boolean[] ok = {false};
+        boolean v = NumberParse.parseBoolean(val, false, ok);
+        if (!ok[0])
+            throw invalid("Not a boolean: " + val);
+        return v;
+    }
+
+    private static XMLStruct.BadSyntaxException invalid(String msg)
+    {
+        return new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.INVALID_VALUE, msg);
+    }
+}
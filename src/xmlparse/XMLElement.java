@@ -0,0 +1,15 @@
+package xmlparse;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Binds a class to an element name, or a field to the child element(s)
+// with that name, see XMLBinder
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.FIELD})
+public @interface XMLElement
+{
+    String value();
+}
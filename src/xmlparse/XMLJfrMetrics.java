@@ -0,0 +1,103 @@
+package xmlparse;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Forwards parser metrics to Java Flight Recorder as custom events
+//
+// Events are only built when a recording has them enabled, so installing
+// this listener costs little outside of a recording.
+public class XMLJfrMetrics implements XMLMetrics
+{
+    public void phase(Phase phase, long nanos, long allocatedBytes)
+    {
+        PhaseEvent e = new PhaseEvent();
+        if (e.isEnabled())
+        {
+            e.phase = phase.name();
+            e.nanos = nanos;
+            e.allocated = allocatedBytes;
+            e.commit();
+        }
+    }
+
+    public void parsed(long bytes, long chars, int elements, int attributes, int texts, int maxDepth)
+    {
+        DocumentEvent e = new DocumentEvent();
+        if (e.isEnabled())
+        {
+            e.bytes = bytes;
+            e.chars = chars;
+            e.elements = elements;
+            e.attributes = attributes;
+            e.texts = texts;
+            e.maxDepth = maxDepth;
+            e.commit();
+        }
+    }
+
+    public void error(XMLStruct.BadSyntaxException.Kind kind)
+    {
+        ErrorEvent e = new ErrorEvent();
+        if (e.isEnabled())
+        {
+            e.kind = kind.name();
+            e.commit();
+        }
+    }
+
+    @Name("xmlparse.Phase")
+    @Label("XML Phase")
+    @Category("XMLParse")
+    static class PhaseEvent extends Event
+    {
+        @Label("Phase")
+        String phase;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("xmlparse.Document")
+    @Label("XML Document Parsed")
+    @Category("XMLParse")
+    static class DocumentEvent extends Event
+    {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Chars")
+        long chars;
+
+        @Label("Elements")
+        int elements;
+
+        @Label("Attributes")
+        int attributes;
+
+        @Label("Text Nodes")
+        int texts;
+
+        @Label("Max Depth")
+        int maxDepth;
+    }
+
+    @Name("xmlparse.Error")
+    @Label("XML Syntax Error")
+    @Category("XMLParse")
+    static class ErrorEvent extends Event
+    {
+        @Label("Kind")
+        String kind;
+    }
+}
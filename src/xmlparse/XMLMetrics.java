@@ -0,0 +1,32 @@
+package xmlparse;
+
+// Receives instrumentation from XMLStruct parsing and serialization
+//
+// Install with XMLStruct.setMetrics; while no listener is installed the
+// parser only keeps a handful of int counters. All callbacks happen on the
+// thread doing the work, once per document or phase rather than per node.
+public interface XMLMetrics
+{
+    enum Phase
+    {
+        READ,  // reading the file into lines
+        COMMENTS,  // stripping <!-- --> comments
+        PARSE,  // tokenizing and building the tree (done in one pass)
+        SERIALIZE  // writing text or binary output
+    }
+
+    // allocatedBytes is -1 when the JVM can't measure per-thread allocation
+    // or the phase is too fine-grained to measure it
+    default void phase(Phase phase, long nanos, long allocatedBytes)
+    {
+    }
+
+    // bytes is -1 when the input didn't come from a file
+    default void parsed(long bytes, long chars, int elements, int attributes, int texts, int maxDepth)
+    {
+    }
+
+    default void error(XMLStruct.BadSyntaxException.Kind kind)
+    {
+    }
+}
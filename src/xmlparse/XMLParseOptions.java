@@ -0,0 +1,175 @@
+package xmlparse;
+
+// Settings for a single parse
+//
+// Limits are checked while the input is scanned, so oversized or hostile
+// documents fail with a BadSyntaxException as soon as a limit is crossed
+// instead of after the whole document has been buffered. Every limit
+// defaults to unlimited.
+public class XMLParseOptions
+{
+    private long maxInputChars;
+    private int maxDepth;
+    private int maxAttributes;
+    private int maxNameLength;
+    private int maxTextLength;
+    private int maxCommentLength;
+    private int maxTagLength;
+    private boolean lenient;
+    private boolean trackPositions;
+
+    public XMLParseOptions()
+    {
+        maxInputChars = Long.MAX_VALUE;
+        maxDepth = Integer.MAX_VALUE;
+        maxAttributes = Integer.MAX_VALUE;
+        maxNameLength = Integer.MAX_VALUE;
+        maxTextLength = Integer.MAX_VALUE;
+        maxCommentLength = Integer.MAX_VALUE;
+        maxTagLength = Integer.MAX_VALUE;
+        lenient = false;
+        trackPositions = false;
+    }
+
+    public XMLParseOptions(XMLParseOptions opts)
+    {
+        maxInputChars = opts.maxInputChars;
+        maxDepth = opts.maxDepth;
+        maxAttributes = opts.maxAttributes;
+        maxNameLength = opts.maxNameLength;
+        maxTextLength = opts.maxTextLength;
+        maxCommentLength = opts.maxCommentLength;
+        maxTagLength = opts.maxTagLength;
+        lenient = opts.lenient;
+        trackPositions = opts.trackPositions;
+    }
+
+    // Recovery
+
+    // In lenient mode a malformed element is dropped whole, up to its close
+    // tag, and parsing resumes after it instead of failing the whole
+    // document. Without a close tag it runs to its parent's. Stray close tags
+    // are skipped, missing close tags are closed implicitly, and every
+    // problem is recorded on the root, see XMLStruct.getParseErrors.
+    // Limits are never relaxed by this.
+    public XMLParseOptions setLenient(boolean l)
+    {
+        lenient = l;
+        return this;
+    }
+
+    public boolean isLenient()
+    {
+        return lenient;
+    }
+
+    // Records the input offset of every element and text node, and keeps a
+    // newline index so they can be turned into lines and columns, see
+    // XMLStruct.getSourceOffset
+    public XMLParseOptions setTrackPositions(boolean t)
+    {
+        trackPositions = t;
+        return this;
+    }
+
+    public boolean isTrackPositions()
+    {
+        return trackPositions;
+    }
+
+    // Limits
+
+    // Total characters of input, including comments
+    public XMLParseOptions setMaxInputChars(long max)
+    {
+        maxInputChars = max;
+        return this;
+    }
+
+    // Element nesting, the root being depth 1
+    public XMLParseOptions setMaxDepth(int max)
+    {
+        maxDepth = max;
+        return this;
+    }
+
+    // Attributes on a single element
+    public XMLParseOptions setMaxAttributes(int max)
+    {
+        maxAttributes = max;
+        return this;
+    }
+
+    // Element and attribute names
+    public XMLParseOptions setMaxNameLength(int max)
+    {
+        maxNameLength = max;
+        return this;
+    }
+
+    // A single text node or attribute value
+    public XMLParseOptions setMaxTextLength(int max)
+    {
+        maxTextLength = max;
+        return this;
+    }
+
+    // The body of a single <!-- --> comment
+    public XMLParseOptions setMaxCommentLength(int max)
+    {
+        maxCommentLength = max;
+        return this;
+    }
+
+    // Everything between < and > of a single tag. When not set, tags are
+    // bounded by the name, attribute and text limits if all three are set,
+    // allowing for escapes and some whitespace between attributes.
+    public XMLParseOptions setMaxTagLength(int max)
+    {
+        maxTagLength = max;
+        return this;
+    }
+
+    public long getMaxInputChars()
+    {
+        return maxInputChars;
+    }
+
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    public int getMaxAttributes()
+    {
+        return maxAttributes;
+    }
+
+    public int getMaxNameLength()
+    {
+        return maxNameLength;
+    }
+
+    public int getMaxTextLength()
+    {
+        return maxTextLength;
+    }
+
+    public int getMaxCommentLength()
+    {
+        return maxCommentLength;
+    }
+
+    public int getMaxTagLength()
+    {
+        if (maxTagLength != Integer.MAX_VALUE ||
+            maxNameLength == Integer.MAX_VALUE ||
+            maxAttributes == Integer.MAX_VALUE ||
+            maxTextLength == Integer.MAX_VALUE)
+            return maxTagLength;
+
+        long perAttribute = maxNameLength + 2L * maxTextLength + 16;
+        long derived = maxNameLength + 16 + maxAttributes * perAttribute;
+        return (int)Math.min(derived, Integer.MAX_VALUE);
+    }
+}
@@ -1,6 +1,9 @@
 package xmlparse;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -10,12 +13,24 @@ import java.io.FileWriter;
 import java.io.InputStreamReader;
 import java.io.IOException;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.nio.file.Path;
+
 public class XMLStruct implements Cloneable
 {
-    private ArrayList<Child> children;
+    private List<Child> children;
     private String type;
-    private ArrayList<Attribute> attribs;
+    private List<Attribute> attribs;
     private boolean keepWS;
+    private boolean concurrent;
+    private List<BadSyntaxException> parseErrors;
+
+    // Offset of the open tag when parsed with position tracking, -1
+    // otherwise. Text children keep their own, see TrackedText.
+    private long sourceOffset;
+    private SourceMap sourceMap;
 
     // Constructors
 
@@ -25,6 +40,10 @@ public class XMLStruct implements Cloneable
         type = "";
         attribs = new ArrayList<Attribute>();
         keepWS = true;
+        concurrent = false;
+        parseErrors = null;
+        sourceOffset = -1;
+        sourceMap = null;
     }
 
     public XMLStruct(String name)
@@ -60,6 +79,12 @@ public class XMLStruct implements Cloneable
         }
 
         keepWS = xml.keepWS;
+
+        sourceOffset = xml.sourceOffset;
+        sourceMap = xml.sourceMap;
+
+        if (xml.concurrent)
+            setConcurrent(true);
     }
 
     public Object clone()
@@ -68,17 +93,23 @@ public class XMLStruct implements Cloneable
     }
 
     public static XMLStruct parseFromString(String str) throws BadSyntaxException
+    {
+        return parseFromString(str, DEFAULT_OPTIONS);
+    }
+    public static XMLStruct parseFromString(String str, XMLParseOptions opts) throws BadSyntaxException
     {
         CStream<String> stream = new CStream<String>();
         stream.add(str);
-        return parseFromStream(stream);
+        return parseFromStream(stream, opts);
     }
 
     public static XMLStruct parseFromStream(CStream<String> stream) throws BadSyntaxException
     {
-        XMLStruct xml = new XMLStruct();
-        xml.parse(stream);
-        return xml;
+        return parseFromStream(stream, DEFAULT_OPTIONS);
+    }
+    public static XMLStruct parseFromStream(CStream<String> stream, XMLParseOptions opts) throws BadSyntaxException
+    {
+        return parseWith(stream, true, -1, opts);
     }
 
     public static XMLStruct parseFromFile(String fn) throws BadSyntaxException
@@ -86,8 +117,18 @@ public class XMLStruct implements Cloneable
         return parseFromFile(fn, false);
     }
     public static XMLStruct parseFromFile(String fn, boolean keepWS) throws BadSyntaxException
+    {
+        return parseFromFile(fn, keepWS, DEFAULT_OPTIONS);
+    }
+    public static XMLStruct parseFromFile(String fn, boolean keepWS, XMLParseOptions opts) throws BadSyntaxException
     {
         CStream<String> stream = new CStream<String>();
+        long maxChars = opts.getMaxInputChars();
+        long chars = 0;
+
+        XMLMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        long alloc = (m != null) ? allocatedBytes() : 0;
 
         FileInputStream fis = null;
         BufferedReader br = null;
@@ -100,12 +141,27 @@ public class XMLStruct implements Cloneable
         	String l = null;
         	while ((l = br.readLine()) != null)
             {
+                // Stop reading as soon as the file is known to be too big
+                chars += l.length() + 1;
+                if (chars > maxChars)
+                {
+                    BadSyntaxException e = inputTooLarge(maxChars);
+                    if (m != null)
+                        m.error(e.getKind());
+                    throw e;
+                }
+
         		stream.add(l + "\n");
         	}
 
-            xml = new XMLStruct();
-            xml.keepWS = keepWS;
-            xml.parse(stream);
+            long bytes = -1;
+            if (m != null)
+            {
+                m.phase(XMLMetrics.Phase.READ, System.nanoTime() - start, allocatedSince(alloc));
+                bytes = fis.getChannel().size();
+            }
+
+            xml = parseWith(stream, keepWS, bytes, opts);
         }
         catch (IOException e)
         {
@@ -133,12 +189,19 @@ public class XMLStruct implements Cloneable
     }
     public String saveToFile(String fn, boolean addNL)
     {
+        XMLMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        long alloc = (m != null) ? allocatedBytes() : 0;
+
         String contents = null;
         if (addNL)
             contents = toStringNL();
         else
             contents = toString();
 
+        if (m != null)
+            m.phase(XMLMetrics.Phase.SERIALIZE, System.nanoTime() - start, allocatedSince(alloc));
+
         BufferedWriter bw = null;
         try
         {
@@ -175,6 +238,107 @@ public class XMLStruct implements Cloneable
             return contents;
     }
 
+    // Writes the tree in the binary format, see XMLBinary
+    public boolean saveToBinary(Path path)
+    {
+        XMLMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        long alloc = (m != null) ? allocatedBytes() : 0;
+
+        try
+        {
+            XMLBinary.write(this, path);
+
+            if (m != null)
+                m.phase(XMLMetrics.Phase.SERIALIZE, System.nanoTime() - start, allocatedSince(alloc));
+            return true;
+        }
+        catch (IOException ioe)
+        {
+            System.out.println("Failed to write binary XML file");
+            return false;
+        }
+    }
+
+    // Reads a tree written by saveToBinary, mapping the file instead of
+    // re-parsing text
+    public static XMLStruct loadBinary(Path path) throws BadSyntaxException
+    {
+        try
+        {
+            return XMLBinary.read(path);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        catch (BadSyntaxException e)
+        {
+            XMLMetrics m = metrics;
+            if (m != null)
+                m.error(e.getKind());
+            throw e;
+        }
+    }
+
+    // Instrumentation
+
+    private static volatile XMLMetrics metrics = null;
+
+    // Installs a listener for parse and serialization metrics on all
+    // threads, or removes it when given null
+    public static void setMetrics(XMLMetrics m)
+    {
+        metrics = m;
+    }
+
+    public static XMLMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    // Concurrency
+
+    // In concurrent mode every node keeps its children and attributes in
+    // append-only lists (see AppendList). Readers don't block and iterate a
+    // consistent snapshot, appends are amortized O(1), and each writer only
+    // locks the node it is modifying, so updates to different subtrees
+    // never contend. Switch modes before the tree is shared between threads.
+    public XMLStruct setConcurrent(boolean c)
+    {
+        // A concurrent node's subtree is already concurrent
+        if (c && concurrent)
+            return this;
+
+        if (c != concurrent)
+        {
+            if (c)
+            {
+                children = new AppendList<Child>(children);
+                attribs = new AppendList<Attribute>(attribs);
+            }
+            else
+            {
+                children = new ArrayList<Child>(children);
+                attribs = new ArrayList<Attribute>(attribs);
+            }
+            concurrent = c;
+        }
+
+        for (Child ch : children)
+        {
+            if (ch.struct != null)
+                ch.struct.setConcurrent(c);
+        }
+
+        return this;
+    }
+
+    public boolean isConcurrent()
+    {
+        return concurrent;
+    }
+
     // Public getters
 
     public int getNumChildren()
@@ -184,11 +348,8 @@ public class XMLStruct implements Cloneable
 
     public XMLStruct getChildElement(int index)
     {
-        if (index < 0 || index >= children.size())
-            return null;
-
-        Child c = children.get(index);
-        return c.struct;
+        Child c = childAt(index);
+        return c == null ? null : c.struct;
     }
 
     public XMLStruct getChildElement(String name)
@@ -205,11 +366,8 @@ public class XMLStruct implements Cloneable
 
     public String getChildString(int index)
     {
-        if (index < 0 || index >= children.size())
-            return null;
-
-        Child c = children.get(index);
-        return c.string;
+        Child c = childAt(index);
+        return c == null ? null : c.string;
     }
 
     public String getChildString()
@@ -222,6 +380,54 @@ public class XMLStruct implements Cloneable
         return type;
     }
 
+    // Offset of this element's open tag in the input, -1 unless it was
+    // parsed with position tracking
+    public long getSourceOffset()
+    {
+        return sourceOffset;
+    }
+
+    // Offset of a child element's open tag or the start of a text child
+    public long getChildSourceOffset(int index)
+    {
+        Child c = childAt(index);
+        if (c == null)
+            return -1;
+
+        // Children added from another tree have offsets into its input
+        if (c.which == 0)
+            return (c.struct.sourceMap == sourceMap) ? c.struct.sourceOffset : -1;
+
+        return (c instanceof TrackedText) ? ((TrackedText)c).offset : -1;
+    }
+
+    // 1-based line of an offset from this tree, -1 if positions weren't tracked
+    public int getSourceLine(long offset)
+    {
+        if (sourceMap == null || offset < 0)
+            return -1;
+
+        return sourceMap.lineOf(offset);
+    }
+
+    // 1-based column of an offset from this tree, -1 if positions weren't tracked
+    public int getSourceColumn(long offset)
+    {
+        if (sourceMap == null || offset < 0)
+            return -1;
+
+        return sourceMap.columnOf(offset);
+    }
+
+    // Problems skipped over by a lenient parse, empty for anything else
+    public List<BadSyntaxException> getParseErrors()
+    {
+        if (parseErrors == null)
+            return Collections.emptyList();
+
+        return Collections.unmodifiableList(parseErrors);
+    }
+
     public int getNumAttribs()
     {
         return attribs.size();
@@ -257,47 +463,170 @@ public class XMLStruct implements Cloneable
         return null;
     }
 
+    // Typed attribute values, parsed from the stored characters without
+    // boxing. The default is returned if the attribute is missing or
+    // malformed, and ok[0] tells which when ok is given.
+
+    public int getAttribInt(String name, int def)
+    {
+        return getAttribInt(name, def, null);
+    }
+
+    public int getAttribInt(String name, int def, boolean[] ok)
+    {
+        return NumberParse.parseInt(getAttribValueFromName(name), def, ok);
+    }
+
+    public long getAttribLong(String name, long def)
+    {
+        return getAttribLong(name, def, null);
+    }
+
+    public long getAttribLong(String name, long def, boolean[] ok)
+    {
+        return NumberParse.parseLong(getAttribValueFromName(name), def, ok);
+    }
+
+    public double getAttribDouble(String name, double def)
+    {
+        return getAttribDouble(name, def, null);
+    }
+
+    public double getAttribDouble(String name, double def, boolean[] ok)
+    {
+        return NumberParse.parseDouble(getAttribValueFromName(name), def, ok);
+    }
+
+    public boolean getAttribBoolean(String name, boolean def)
+    {
+        return getAttribBoolean(name, def, null);
+    }
+
+    public boolean getAttribBoolean(String name, boolean def, boolean[] ok)
+    {
+        return NumberParse.parseBoolean(getAttribValueFromName(name), def, ok);
+    }
+
+    // Typed values of the first child, as returned by getChildString
+
+    public int getChildInt(int def)
+    {
+        return getChildInt(def, null);
+    }
+
+    public int getChildInt(int def, boolean[] ok)
+    {
+        return NumberParse.parseInt(getChildString(), def, ok);
+    }
+
+    public long getChildLong(long def)
+    {
+        return getChildLong(def, null);
+    }
+
+    public long getChildLong(long def, boolean[] ok)
+    {
+        return NumberParse.parseLong(getChildString(), def, ok);
+    }
+
+    public double getChildDouble(double def)
+    {
+        return getChildDouble(def, null);
+    }
+
+    public double getChildDouble(double def, boolean[] ok)
+    {
+        return NumberParse.parseDouble(getChildString(), def, ok);
+    }
+
+    public boolean getChildBoolean(boolean def)
+    {
+        return getChildBoolean(def, null);
+    }
+
+    public boolean getChildBoolean(boolean def, boolean[] ok)
+    {
+        return NumberParse.parseBoolean(getChildString(), def, ok);
+    }
+
     public String toString()
     {
-        String str = "";
+        StringBuilder sb = new StringBuilder();
+        appendTo(sb);
+        return sb.toString();
+    }
+
+    // Like toString, with line breaks around child elements. For control
+    // over indentation and escaping use XMLWriter.
+    public String toStringNL()
+    {
+        StringBuilder sb = new StringBuilder();
+        appendNLTo(sb);
+        return sb.toString();
+    }
 
-        str += "<";
-        str += type;
+    // Public setters
+    public XMLStruct addChild(XMLStruct xml)
+    {
+        if (concurrent)
+            xml.setConcurrent(true);
+
+        children.add(new Child(xml));
+        return this;
+    }
+
+    public XMLStruct addChild(String str)
+    {
+        children.add(new Child(str));
+        return this;
+    }
+
+    public XMLStruct addAttribute(String name, String value)
+    {
+        attribs.add(new Attribute(name, value));
+        return this;
+    }
+
+    // Private
+
+    private void appendOpen(StringBuilder sb)
+    {
+        sb.append('<').append(type);
         for (Attribute a : attribs)
-            str += " " + a;
-        str += ">";
+            sb.append(' ').append(a.name).append("=\"").append(a.val).append('"');
+        sb.append('>');
+    }
+
+    private void appendTo(StringBuilder sb)
+    {
+        appendOpen(sb);
 
         for (Child c : children)
         {
-            str += c;
+            if (c.which == 0)
+                c.struct.appendTo(sb);
+            else
+                sb.append(c.string);
         }
 
-        str += "</" + type + ">";
-
-        return str;
+        sb.append("</").append(type).append('>');
     }
 
-    public String toStringNL()
+    private void appendNLTo(StringBuilder sb)
     {
-        String str = "";
-
-        str += "<";
-        str += type;
-        for (Attribute a : attribs)
-            str += " " + a;
-        str += ">";
+        appendOpen(sb);
 
         boolean prevNL = false;
         for (Child c : children)
         {
-            String line = children.get(0).string;
+            String line = c.string;
 
             if (!prevNL)
             {
                 if (line == null ||
                     (line.length() > 0 && line.charAt(0) != '\n'))
                 {
-                    str += "\n\r";
+                    sb.append("\n\r");
                 }
             }
 
@@ -311,45 +640,98 @@ public class XMLStruct implements Cloneable
             else
                 prevNL = false;
 
-            str += c.toStringNL();
+            if (c.which == 0)
+                c.struct.appendNLTo(sb);
+            else
+                sb.append(c.string);
         }
 
         if (!prevNL)
-            str += "\n\r";
+            sb.append("\n\r");
 
-        str += "</" + type + ">";
-
-        return str;
+        sb.append("</").append(type).append('>');
     }
 
-    // Public setters
-    public XMLStruct addChild(XMLStruct xml)
+    private Child childAt(int index)
     {
-        children.add(new Child(xml));
-        return this;
-    }
+        // Lists only ever grow, so a bounds check stays valid even while
+        // another thread is appending
+        List<Child> list = children;
 
-    public XMLStruct addChild(String str)
-    {
-        children.add(new Child(str));
-        return this;
+        if (index < 0 || index >= list.size())
+            return null;
+
+        return list.get(index);
     }
 
-    public XMLStruct addAttribute(String name, String value)
+    private static XMLStruct parseWith(CStream<String> stream, boolean keepWS, long bytes, XMLParseOptions opts) throws BadSyntaxException
     {
-        attribs.add(new Attribute(name, value));
-        return this;
-    }
+        ParseContext ctx = new ParseContext(metrics, opts);
+        XMLMetrics m = ctx.metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        long alloc = (m != null) ? allocatedBytes() : 0;
 
-    // Private
+        XMLStruct xml = new XMLStruct();
+        xml.keepWS = keepWS;
+
+        try
+        {
+            xml.parse(stream, ctx);
+            ++ctx.elements;
+        }
+        catch (BadSyntaxException e)
+        {
+            if (!opts.isLenient() || e.getKind().isLimit())
+            {
+                ctx.locate(e);
+                if (m != null)
+                    m.error(e.getKind());
+                throw e;
+            }
+
+            // Keep whatever was built before the root itself failed
+            ctx.recordError(e);
+            if (xml.type.length() > 0)
+                ++ctx.elements;
+        }
+
+        if (opts.isLenient())
+            xml.parseErrors = ctx.errors;
+
+        if (m != null)
+        {
+            long nanos = System.nanoTime() - start;
+            m.phase(XMLMetrics.Phase.COMMENTS, ctx.commentNanos, -1);
+            m.phase(XMLMetrics.Phase.PARSE, nanos - ctx.commentNanos, allocatedSince(alloc));
+            m.parsed(bytes, ctx.chars, ctx.elements, ctx.attributes, ctx.texts, ctx.maxDepth);
+        }
+
+        return xml;
+    }
 
-    private int parse(CStream<String> stream) throws BadSyntaxException
+    private int parse(CStream<String> stream, ParseContext ctx) throws BadSyntaxException
     {
-        return parse(stream, 0);
+        return parse(stream, 0, ctx);
     }
-    private int parse(CStream<String> stream, int i) throws BadSyntaxException
+    private int parse(CStream<String> stream, int i, ParseContext ctx) throws BadSyntaxException
     {
-        String prevStr = "";
+        XMLParseOptions opts = ctx.opts;
+
+        if (++ctx.depth > ctx.maxDepth)
+        {
+            ctx.maxDepth = ctx.depth;
+
+            if (ctx.depth > opts.getMaxDepth())
+                throw new BadSyntaxException(BadSyntaxException.Kind.TOO_DEEP,
+                                             "Elements nested deeper than " + opts.getMaxDepth());
+        }
+
+        // Set once the open tag has been read
+        if (opts.isLenient())
+            ctx.setOpenName(null);
+
+        StringBuilder prevStr = new StringBuilder();
+        long textStart = -1;
         ParseState state = ParseState.PARSE_BEGIN;
 
         boolean openTag = false;
@@ -359,13 +741,8 @@ public class XMLStruct implements Cloneable
         String str = "";
         String pastStr = "";
 
-        boolean[] commented = {false};
-
-        while ((str = stream.peek()) != null)
+        while ((str = frontLine(stream, ctx)) != null)
         {
-            str = cutComments(str, commented);
-            stream.switchFront(str);
-
             int j = i;
 
             while (i < str.length())
@@ -377,34 +754,48 @@ public class XMLStruct implements Cloneable
                         char[] open = {'<'};
                         i = skipUntil(str, i, open, null);
 
+                        if (ctx.sourceMap != null && prevStr.length() == 0)
+                            textStart = ctx.offsetOf(j);
+
+                        if (prevStr.length() + (i - j) > opts.getMaxTextLength())
+                            throw new BadSyntaxException(BadSyntaxException.Kind.TEXT_TOO_LONG,
+                                                         "Text longer than " + opts.getMaxTextLength());
+
                         if (i < str.length())
                         {
-                            contents = prevStr + str.substring(j, i);
-                            prevStr = "";
-                            if (contents.length() > 0)
+                            ctx.mark(str, i);
+                            if (ctx.sourceMap != null && !openTag)
                             {
-                                if (keepWS)
-                                    children.add(new Child(contents));
-                                else if (!onlyWS(contents))
-                                    children.add(new Child(contents.trim()));
+                                sourceOffset = ctx.markOffset;
+                                sourceMap = ctx.sourceMap;
                             }
 
+                            contents = prevStr.append(str, j, i).toString();
+                            prevStr.setLength(0);
+                            addText(contents, textStart, ctx);
+
                             j = i;
                             ++i;
                             state = ParseState.PARSE_CLOSE;
                         }
                         else
                         {
-                            prevStr += str.substring(j, i);
+                            prevStr.append(str, j, i);
                         }
                         break;
                     case PARSE_CLOSE:
                         i = skipWS(str, i);
+                        if (i >= str.length())
+                        {
+                            // Tag continues on the next line
+                            break;
+                        }
+
                         if (str.charAt(i) == '/')
                         {
                             if (!openTag)
                             {
-                                throw new BadSyntaxException("Close tag without matching open: " + str);
+                                throw new BadSyntaxException(BadSyntaxException.Kind.CLOSE_WITHOUT_OPEN, "Close tag without matching open: ", str);
                             }
                             closeTag = true;
                             ++i;
@@ -416,10 +807,39 @@ public class XMLStruct implements Cloneable
                             XMLStruct nest = new XMLStruct();
                             nest.keepWS = keepWS;
 
-                            i = nest.parse(stream, j);
-                            str = stream.peek();
+                            int depth = ctx.depth;
+                            int elements = ctx.elements;
+                            int attributes = ctx.attributes;
+                            int texts = ctx.texts;
+                            try
+                            {
+                                i = nest.parse(stream, j, ctx);
+                                children.add(new Child(nest));
+                                ++ctx.elements;
+                            }
+                            catch (BadSyntaxException e)
+                            {
+                                if (!opts.isLenient() || e.getKind().isLimit())
+                                    throw e;
+
+                                // Drop the broken element whole, and uncount
+                                // whatever it had added. If its open tag is what
+                                // failed, its content and close tag are still
+                                // ahead, otherwise carry on from the next tag.
+                                ctx.recordError(e);
+                                ctx.depth = depth;
+                                ctx.elements = elements;
+                                ctx.attributes = attributes;
+                                ctx.texts = texts;
+                                if (nest.type.length() > 0 && ctx.openNames.get(depth) == null)
+                                    i = skipElement(stream, ctx, nest.type);
+                                else
+                                    i = resync(stream, ctx);
+                            }
 
-                            children.add(new Child(nest));
+                            str = stream.peek();
+                            if (str == null)
+                                str = "";
 
                             state = ParseState.PARSE_BEGIN;
                         }
@@ -432,76 +852,349 @@ public class XMLStruct implements Cloneable
                         j = i;
                         i = skipUntil(str, i, CLOSERS, STRING_ESCAPES);
 
+                        // Checked before the tag is buffered, since the other
+                        // limits are only applied once its > arrives
+                        if (prevStr.length() + (i - j) > ctx.maxTagLength)
+                            throw new BadSyntaxException(BadSyntaxException.Kind.TAG_TOO_LONG,
+                                                         "Tag longer than " + ctx.maxTagLength);
+
                         if (i < str.length())
                         {
-                            contents = prevStr + str.substring(j, i);
-                            prevStr = "";
+                            contents = prevStr.append(str, j, i).toString();
+                            prevStr.setLength(0);
 
                             if (str.charAt(i) == '/')
                             {
                                 if (!closeTag)
                                 {
                                     closeTag = true;
-                                    parseOpen(contents);
+                                    parseOpen(contents, ctx);
 
                                     i = skipWS(str, i + 1);
 
-                                    if (str.charAt(i) != '>')
+                                    if (i >= str.length() || str.charAt(i) != '>')
                                     {
-                                        throw new BadSyntaxException("Improper self-closing tag: " + str);
+                                        throw new BadSyntaxException(BadSyntaxException.Kind.IMPROPER_SELF_CLOSE, "Improper self-closing tag: ", str);
                                     }
                                 }
                                 else
                                 {
-                                    throw new BadSyntaxException("Close tag marked self-closing: " + str);
+                                    throw new BadSyntaxException(BadSyntaxException.Kind.CLOSE_MARKED_SELF_CLOSING, "Close tag marked self-closing: ", str);
                                 }
                             }
                             else
                             {
                                 if (!closeTag)
                                 {
-                                    parseOpen(contents);
+                                    parseOpen(contents, ctx);
+                                }
+                                else if (!opts.isLenient())
+                                {
+                                    parseClose(contents, ctx);
                                 }
                                 else
                                 {
-                                    parseClose(contents);
+                                    try
+                                    {
+                                        parseClose(contents, ctx);
+                                    }
+                                    catch (BadSyntaxException e)
+                                    {
+                                        if (e.getKind() != BadSyntaxException.Kind.CLOSE_WITHOUT_OPEN &&
+                                            e.getKind() != BadSyntaxException.Kind.INVALID_CLOSE_TAG)
+                                            throw e;
+
+                                        String closeType = closeName(contents);
+                                        if (ctx.isOpenAncestor(closeType))
+                                        {
+                                            // This element is missing its close tag, close it here and
+                                            // let the ancestor see its own close tag
+                                            ctx.recordError(new BadSyntaxException(BadSyntaxException.Kind.OPEN_WITHOUT_CLOSE,
+                                                                                   "Open tag without matching close: <" + type + ">"));
+                                            --ctx.depth;
+                                            return ctx.unread(stream, "</" + contents + ">", str, i + 1);
+                                        }
+
+                                        // Stray close tag, skip it
+                                        ctx.recordError(e);
+                                        closeTag = false;
+                                        ++i;
+                                        state = ParseState.PARSE_BEGIN;
+                                        break;
+                                    }
                                 }
                             }
 
                             ++i;
                             if (closeTag)
                             {
-                                 return i;
+                                --ctx.depth;
+                                return i;
                             }
                             else
                             {
                                 openTag = true;
+                                if (opts.isLenient())
+                                    ctx.setOpenName(type);
                             }
                             state = ParseState.PARSE_BEGIN;
                         }
                         else
                         {
-                            prevStr += str.substring(j, i);
+                            prevStr.append(str, j, i);
                         }
                         break;
                     default:
-                        throw new BadSyntaxException("Invalid parser state");
+                        throw new BadSyntaxException(BadSyntaxException.Kind.INVALID_STATE, "Invalid parser state");
                 }
             }
 
             i = 0;
-            pastStr = stream.get();
+            pastStr = nextLine(stream, ctx);
+        }
+
+        if (!opts.isLenient())
+        {
+            BadSyntaxException e = new BadSyntaxException(BadSyntaxException.Kind.OPEN_WITHOUT_CLOSE,
+                                                          "Open tag without matching close: ", pastStr);
+            ctx.locateAt(e, getSourceOffset());
+            throw e;
+        }
+
+        // Close whatever is still open at the end of the input
+        if (state == ParseState.PARSE_BEGIN)
+            addText(prevStr.toString(), textStart, ctx);
+
+        BadSyntaxException e = new BadSyntaxException(BadSyntaxException.Kind.OPEN_WITHOUT_CLOSE,
+                                                      "Open tag without matching close: <" + type + ">");
+        ctx.locateAt(e, getSourceOffset());
+        ctx.recordError(e);
+        --ctx.depth;
+        return 0;
+    }
+
+    private void addText(String contents, long start, ParseContext ctx)
+    {
+        if (contents.length() > 0)
+        {
+            if (!keepWS)
+            {
+                if (onlyWS(contents))
+                    return;
+
+                contents = contents.trim();
+            }
+
+            if (ctx.sourceMap != null)
+                children.add(new TrackedText(contents, start));
+            else
+                children.add(new Child(contents));
+
+            ++ctx.texts;
         }
+    }
+
+    // Returns the front line of the stream with comments cut out. Each line
+    // is only cut by the first element that reaches it, nested elements
+    // pick up the cut version.
+    private static String frontLine(CStream<String> stream, ParseContext ctx) throws BadSyntaxException
+    {
+        String str = stream.peek();
+        if (str == null || str == ctx.front)
+            return str;
 
-        if (!closeTag)
+        ctx.frontId++;
+        ctx.frontOffset = ctx.chars;
+        ctx.frontOriginal = str;
+        ctx.numCuts = 0;
+
+        if (ctx.sourceMap != null)
+            ctx.sourceMap.addChunk(str, ctx.frontOffset);
+
+        ctx.chars += str.length();
+        if (ctx.chars > ctx.opts.getMaxInputChars())
+            throw inputTooLarge(ctx.opts.getMaxInputChars());
+
+        String cut;
+        if (ctx.metrics != null)
+        {
+            long start = System.nanoTime();
+            cut = cutComments(str, ctx);
+            ctx.commentNanos += System.nanoTime() - start;
+        }
+        else
         {
-            throw new BadSyntaxException("Open tag without matching close: " + pastStr);
+            cut = cutComments(str, ctx);
         }
 
-        return str.length();
+        stream.switchFront(cut);
+        ctx.front = cut;
+        return cut;
     }
 
-    private void parseOpen(String str) throws BadSyntaxException
+    private static String nextLine(CStream<String> stream, ParseContext ctx)
+    {
+        String str = stream.get();
+
+        if (ctx.front != null)
+        {
+            // Keep count of lines for error locations, unless the newline
+            // index already does
+            if (ctx.sourceMap == null)
+            {
+                String orig = ctx.frontOriginal;
+                for (int k = orig.indexOf('\n'); k >= 0; k = orig.indexOf('\n', k + 1))
+                {
+                    ++ctx.lines;
+                    ctx.lineStart = ctx.frontOffset + k + 1;
+                }
+            }
+            ctx.front = null;
+        }
+
+        return str;
+    }
+
+    // Skips past the tag that failed to the start of the next one, or to
+    // the end of the input
+    private static int resync(CStream<String> stream, ParseContext ctx) throws BadSyntaxException
+    {
+        String str = frontLine(stream, ctx);
+        int i = (ctx.markId == ctx.frontId) ? ctx.markIndex + 1 : 0;
+
+        while (str != null)
+        {
+            int k = str.indexOf('<', i);
+            if (k >= 0)
+                return k;
+
+            nextLine(stream, ctx);
+            str = frontLine(stream, ctx);
+            i = 0;
+        }
+
+        return 0;
+    }
+
+    // Skips from inside an open tag that failed to past the matching close
+    // tag. Elements opened on the way are tracked, so their close tags
+    // aren't taken for the failed element's or an enclosing element's, and
+    // a close tag for one further out closes those inside it, as in the
+    // parser. Stops at the close tag of an enclosing element instead if
+    // that comes first, and at the tag's > if it turns out to be
+    // self-closing. Tags are found the way the parser finds them, quotes
+    // and backslashes included.
+    private static int skipElement(CStream<String> stream, ParseContext ctx, String name) throws BadSyntaxException
+    {
+        String str = frontLine(stream, ctx);
+        int i = (ctx.markId == ctx.frontId) ? ctx.markIndex + 1 : 0;
+
+        ArrayList<String> open = new ArrayList<String>();
+        boolean inTag = true;   // between a tag's name and its >
+        String opening = name;  // name that tag opens, if it does
+        boolean slash = false;  // that tag has a / outside quotes
+
+        StringBuilder tagName = null;  // set while reading a tag's name
+        boolean closing = false;
+
+        while (str != null)
+        {
+            char quote = 0;
+            boolean backslash = false;
+
+            for (; i < str.length(); ++i)
+            {
+                char c = str.charAt(i);
+
+                if (tagName != null)
+                {
+                    boolean ws = (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+                    if (tagName.length() == 0 && (ws || (c == '/' && !closing)))
+                    {
+                        closing |= (c == '/');
+                        continue;
+                    }
+                    if (!ws && c != '>' && c != '/')
+                    {
+                        tagName.append(c);
+                        continue;
+                    }
+
+                    // Name read, the rest of the tag is scanned below
+                    String found = tagName.toString();
+                    tagName = null;
+                    inTag = true;
+                    opening = closing ? null : found;
+                    slash = false;
+
+                    if (closing)
+                    {
+                        int k = open.lastIndexOf(found);
+                        if (k >= 0)
+                        {
+                            while (open.size() > k)
+                                open.remove(open.size() - 1);
+                        }
+                        else if (ctx.isOpen(found))
+                        {
+                            // Never closed, the enclosing element gets its close tag
+                            return ctx.unread(stream, "</", str, i - found.length());
+                        }
+                    }
+                }
+
+                if (inTag)
+                {
+                    if (backslash)
+                    {
+                        backslash = false;
+                    }
+                    else if (quote != 0)
+                    {
+                        if (c == quote)
+                            quote = 0;
+                        else if (c == '\\')
+                            backslash = true;
+                    }
+                    else if (c == '"' || c == '\'')
+                    {
+                        quote = c;
+                    }
+                    else if (c == '\\')
+                    {
+                        backslash = true;
+                    }
+                    else if (c == '/')
+                    {
+                        slash = true;
+                    }
+                    else if (c == '>')
+                    {
+                        if (opening != null && !slash)
+                            open.add(opening);
+                        if (open.isEmpty())
+                            return i + 1;
+
+                        inTag = false;
+                    }
+                }
+                else if (c == '<')
+                {
+                    ctx.mark(str, i);
+                    tagName = new StringBuilder();
+                    closing = false;
+                }
+            }
+
+            nextLine(stream, ctx);
+            str = frontLine(stream, ctx);
+            i = 0;
+        }
+
+        return 0;
+    }
+
+    private void parseOpen(String str, ParseContext ctx) throws BadSyntaxException
     {
         int j, i;
         i = 0;
@@ -509,10 +1202,11 @@ public class XMLStruct implements Cloneable
         // Find the type of the tag
         j = skipWS(str, i);
         i = skipUntil(str, j, WHITESPACE, null);
+        checkName(i - j, ctx);
         type = evalBS(str.substring(j, i));
 
         if (!validXMLName(type))
-            throw new BadSyntaxException("Invalid element name: " + type);
+            throw new BadSyntaxException(BadSyntaxException.Kind.INVALID_NAME, "Invalid element name: " + type);
 
         // Get attributes
         while ((j = skipWS(str, i)) < str.length())
@@ -521,19 +1215,20 @@ public class XMLStruct implements Cloneable
             String name;
 
             i = skipUntil(str, j, WHITESPACE_OR_EQ, STRING_ESCAPES);
+            checkName(i - j, ctx);
             name = evalBS(str.substring(j, i));
 
             if (name.length() == 0)
-                throw new BadSyntaxException("Attribute without name: <" + str + ">");
+                throw new BadSyntaxException(BadSyntaxException.Kind.ATTRIBUTE_WITHOUT_NAME, "Attribute without name: <" + str + ">");
 
             if (!validXMLName(name))
-                throw new BadSyntaxException("Invalid attribute name: " + name);
+                throw new BadSyntaxException(BadSyntaxException.Kind.INVALID_NAME, "Invalid attribute name: " + name);
 
             // Get equals sign
             j = skipWS(str, i);
 
             if (j >= str.length() || str.charAt(j) != '=')
-                throw new BadSyntaxException("Attribute must be assigned with equals: <" + str + ">");
+                throw new BadSyntaxException(BadSyntaxException.Kind.ATTRIBUTE_WITHOUT_EQUALS, "Attribute must be assigned with equals: <" + str + ">");
 
             i = j + 1;
 
@@ -541,7 +1236,7 @@ public class XMLStruct implements Cloneable
             j = skipWS(str, i);
 
             if (j >= str.length() || str.charAt(j) != '\"' || str.charAt(j) != '\"')
-                throw new BadSyntaxException("Attribute value must be enclosed in quotes: <" + str + ">");
+                throw new BadSyntaxException(BadSyntaxException.Kind.ATTRIBUTE_WITHOUT_QUOTES, "Attribute value must be enclosed in quotes: <" + str + ">");
 
             i = j + 1;
 
@@ -551,62 +1246,89 @@ public class XMLStruct implements Cloneable
             j = i;
             char[] close = {'\"', '\''};
             i = skipUntil(str, j, close, STRING_ESCAPES);
+            if (i - j > ctx.opts.getMaxTextLength())
+                throw new BadSyntaxException(BadSyntaxException.Kind.TEXT_TOO_LONG,
+                                             "Attribute value longer than " + ctx.opts.getMaxTextLength());
             val = evalBS(str.substring(j, i));
 
             // Get the close quote
             if (i >= str.length() || str.charAt(i) != '\"')
-                throw new BadSyntaxException("Attribute value must be enclosed in quotes: <" + str + ">");
+                throw new BadSyntaxException(BadSyntaxException.Kind.ATTRIBUTE_WITHOUT_QUOTES, "Attribute value must be enclosed in quotes: <" + str + ">");
 
             i = i + 1;
 
             // Add to attribs list
+            if (attribs.size() >= ctx.opts.getMaxAttributes())
+                throw new BadSyntaxException(BadSyntaxException.Kind.TOO_MANY_ATTRIBUTES,
+                                             "More than " + ctx.opts.getMaxAttributes() + " attributes on <" + type + ">");
+
             attribs.add(new Attribute(name, val));
+            ++ctx.attributes;
         }
     }
 
-    private void parseClose(String str) throws BadSyntaxException
+    private void parseClose(String str, ParseContext ctx) throws BadSyntaxException
     {
         int j, i;
 
         // Find the type of the tag
         j = skipWS(str, 0);
         i = skipUntil(str, j, WHITESPACE, null);
+        checkName(i - j, ctx);
         String closeType = evalBS(str.substring(j, i));
 
         if (!closeType.equals(type))
         {
-            throw new BadSyntaxException("Close tag without matching open: </" + str + ">");
+            throw new BadSyntaxException(BadSyntaxException.Kind.CLOSE_WITHOUT_OPEN, "Close tag without matching open: </" + str + ">");
         }   
 
         i = skipWS(str, i);
         if (i != str.length())
         {
-            throw new BadSyntaxException("Invalid close tag: </" + str + ">");
+            throw new BadSyntaxException(BadSyntaxException.Kind.INVALID_CLOSE_TAG, "Invalid close tag: </" + str + ">");
         }
     }
 
-    private String cutComments(String str, boolean[] commented)
+    private static String cutComments(String str, ParseContext ctx) throws BadSyntaxException
     {
         int i = 0;
         int j = i;
 
-        String ret = "";
+        StringBuilder ret = null;
+
+        if (ctx.commented)
+        {
+            ctx.commentStart = 0;
+            ctx.commentCutAt = 0;
+        }
 
         while (i < str.length())
         {
-            if (!commented[0])
+            if (!ctx.commented)
             {
                 i = str.indexOf("<!--", j);
                 if (i < 0)
                 {
-                    ret += str.substring(j);
+                    // Nothing to cut
+                    if (j == 0)
+                        return str;
+                    if (ret == null)
+                        return str.substring(j);
+
+                    ret.append(str, j, str.length());
                     break;
                 }
                 else
                 {
-                    ret += str.substring(j, i);
+                    if (ret == null)
+                        ret = new StringBuilder(str.length());
+
+                    ret.append(str, j, i);
+                    ctx.commentStart = i;
+                    ctx.commentCutAt = ret.length();
                     i += 4;
-                    commented[0] = true;
+                    ctx.commented = true;
+                    ctx.commentLength = 0;
                 }
             }
             else
@@ -614,21 +1336,325 @@ public class XMLStruct implements Cloneable
                 j = str.indexOf("-->", i);
                 if (j < 0)
                 {
+                    addCommentLength(str.length() - i, ctx);
                     break;
                 }
                 else
                 {
+                    addCommentLength(j - i, ctx);
                     j += 3;
-                    commented[0] = false;
+                    ctx.commented = false;
+                    ctx.addCut(ctx.commentCutAt, j - ctx.commentStart);
                 }
             }
         }
 
-        return ret;
+        if (ret == null)
+            return "";
+        return ret.toString();
+    }
+
+    private static void addCommentLength(int length, ParseContext ctx) throws BadSyntaxException
+    {
+        ctx.commentLength += length;
+
+        if (ctx.commentLength > ctx.opts.getMaxCommentLength())
+            throw new BadSyntaxException(BadSyntaxException.Kind.COMMENT_TOO_LONG,
+                                         "Comment longer than " + ctx.opts.getMaxCommentLength());
+    }
+
+    private static void checkName(int length, ParseContext ctx) throws BadSyntaxException
+    {
+        if (length > ctx.opts.getMaxNameLength())
+            throw new BadSyntaxException(BadSyntaxException.Kind.NAME_TOO_LONG,
+                                         "Name longer than " + ctx.opts.getMaxNameLength());
+    }
+
+    private static String closeName(String str) throws BadSyntaxException
+    {
+        int j = skipWS(str, 0);
+        int i = skipUntil(str, j, WHITESPACE, null);
+        return str.substring(j, i);
+    }
+
+    private static BadSyntaxException inputTooLarge(long max)
+    {
+        return new BadSyntaxException(BadSyntaxException.Kind.INPUT_TOO_LARGE,
+                                      "Input longer than " + max + " characters");
     }
 
     // Static
 
+    private static final XMLParseOptions DEFAULT_OPTIONS = new XMLParseOptions();
+
+    // State shared by every element of one parse
+    private static class ParseContext
+    {
+        public final XMLMetrics metrics;
+        public final XMLParseOptions opts;
+        public final int maxTagLength;
+
+        // Only kept when tracking positions
+        public final SourceMap sourceMap;
+
+        // Front line of the stream once comments have been cut from it,
+        // along with where it came from in the input
+        public String front;
+        public String frontOriginal;
+        public int frontId;
+        public long frontOffset;
+
+        // Comments cut from the front line, as positions in the cut line
+        // and the total number of chars removed up to there
+        public int[] cutAt = new int[4];
+        public int[] cutShift = new int[4];
+        public int numCuts;
+
+        public boolean commented;
+        public int commentLength;
+        public int commentStart;
+        public int commentCutAt;
+
+        // Lines before the front line, and where the last one started
+        public int lines;
+        public long lineStart;
+
+        // Start of the last tag seen, where errors are reported
+        public int markId;
+        public int markIndex;
+        public String markOriginal;
+        public int markOrigIndex;
+        public long markOffset;
+        public int markLines;
+        public long markLineStart;
+
+        // Only kept in lenient mode
+        public ArrayList<BadSyntaxException> errors = new ArrayList<BadSyntaxException>();
+        public ArrayList<String> openNames = new ArrayList<String>();
+
+        public long chars;
+
+        // Counts of what ended up in the tree, so lenient mode rolls back
+        // those of a dropped element
+        public int elements;
+        public int attributes;
+        public int texts;
+        public int depth;
+        public int maxDepth;
+        public long commentNanos;
+
+        public ParseContext(XMLMetrics _metrics, XMLParseOptions _opts)
+        {
+            metrics = _metrics;
+            opts = _opts;
+            maxTagLength = opts.getMaxTagLength();
+            sourceMap = opts.isTrackPositions() ? new SourceMap() : null;
+        }
+
+        public void addCut(int at, int removed)
+        {
+            if (numCuts == cutAt.length)
+            {
+                cutAt = Arrays.copyOf(cutAt, numCuts * 2);
+                cutShift = Arrays.copyOf(cutShift, numCuts * 2);
+            }
+
+            int shift = (numCuts > 0) ? cutShift[numCuts - 1] : 0;
+            cutAt[numCuts] = at;
+            cutShift[numCuts] = shift + removed;
+            ++numCuts;
+        }
+
+        // Maps a position in the cut front line back to the original line.
+        // Called for every tag, so the cuts, which are in order, are binary
+        // searched for the last one at or before i.
+        public int originalIndex(int i)
+        {
+            int lo = 0;
+            int hi = numCuts;
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+                if (cutAt[mid] <= i)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            return (lo > 0) ? i + cutShift[lo - 1] : i;
+        }
+
+        public long offsetOf(int i)
+        {
+            return frontOffset + originalIndex(i);
+        }
+
+        public void mark(String str, int i)
+        {
+            int orig = originalIndex(i);
+
+            markId = frontId;
+            markIndex = i;
+            markOriginal = frontOriginal;
+            markOrigIndex = orig;
+            markOffset = frontOffset + orig;
+            markLines = lines;
+            markLineStart = lineStart;
+        }
+
+        // Fills in the location of an error from the last mark
+        public void locate(BadSyntaxException e)
+        {
+            if (e.offset >= 0)
+                return;
+
+            if (markOriginal == null)
+            {
+                e.offset = 0;
+                e.lines = new SourceMap();
+            }
+            else
+            {
+                e.offset = markOffset;
+                e.lines = (sourceMap != null) ? sourceMap :
+                    new SourceMap(markLines, markLineStart, markOriginal, markOffset - markOrigIndex);
+            }
+        }
+
+        // Places an error at a known offset, when positions are tracked
+        public void locateAt(BadSyntaxException e, long offset)
+        {
+            if (sourceMap != null && offset >= 0)
+            {
+                e.offset = offset;
+                e.lines = sourceMap;
+            }
+        }
+
+        public void recordError(BadSyntaxException e)
+        {
+            locate(e);
+            errors.add(e);
+
+            if (metrics != null)
+                metrics.error(e.getKind());
+        }
+
+        public void setOpenName(String name)
+        {
+            while (openNames.size() < depth)
+                openNames.add(null);
+
+            openNames.set(depth - 1, name);
+        }
+
+        // Whether an element enclosing the current one has this name
+        public boolean isOpenAncestor(String name)
+        {
+            return isOpenAbove(name, depth - 1);
+        }
+
+        // Whether the current element or one enclosing it has this name
+        public boolean isOpen(String name)
+        {
+            return isOpenAbove(name, depth);
+        }
+
+        private boolean isOpenAbove(String name, int d)
+        {
+            for (--d; d >= 0; --d)
+            {
+                if (d < openNames.size() && name.equals(openNames.get(d)))
+                    return true;
+            }
+
+            return false;
+        }
+
+        // Hands the last tag back to the enclosing element, returning where
+        // it should resume on the front line, str, whose rest starts at rest
+        public int unread(CStream<String> stream, String tag, String str, int rest)
+        {
+            if (markId == frontId)
+                return markIndex;
+
+            // The tag started on an earlier line, so put it back in front of
+            // the rest of this one. The cuts are redone so the tag maps back
+            // to where it started, before the front line, and the rest to
+            // where it was.
+            int len = tag.length();
+            int[] at = new int[numCuts + 2];
+            int[] shift = new int[numCuts + 2];
+
+            at[0] = 0;
+            shift[0] = (int)(markOffset - frontOffset);
+            at[1] = len;
+            shift[1] = originalIndex(rest) - len;
+
+            int n = 2;
+            for (int c = 0; c < numCuts; ++c)
+            {
+                if (cutAt[c] > rest)
+                {
+                    at[n] = cutAt[c] - rest + len;
+                    shift[n] = cutShift[c] + rest - len;
+                    ++n;
+                }
+            }
+
+            cutAt = at;
+            cutShift = shift;
+            numCuts = n;
+
+            String line = tag + str.substring(rest);
+            stream.switchFront(line);
+            front = line;
+            return 0;
+        }
+    }
+
+    // Per-thread allocation counter, loaded on first use
+    private static class Allocation
+    {
+        public static final com.sun.management.ThreadMXBean BEAN = find();
+
+        private static com.sun.management.ThreadMXBean find()
+        {
+            try
+            {
+                ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+                if (bean instanceof com.sun.management.ThreadMXBean)
+                {
+                    com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean)bean;
+                    if (sun.isThreadAllocatedMemorySupported() &&
+                        sun.isThreadAllocatedMemoryEnabled())
+                        return sun;
+                }
+            }
+            catch (Throwable t)
+            {
+            }
+            return null;
+        }
+    }
+
+    static long allocatedBytes()
+    {
+        com.sun.management.ThreadMXBean bean = Allocation.BEAN;
+        if (bean == null)
+            return -1;
+
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static long allocatedSince(long before)
+    {
+        if (before < 0)
+            return -1;
+
+        return allocatedBytes() - before;
+    }
+
     private enum ParseState
     {
         PARSE_BEGIN,  // < of a tag
@@ -694,6 +1720,10 @@ public class XMLStruct implements Cloneable
                         {
                             char[] close = {escapes[j]};
                             i = skipUntil(str, ++i, close, escapes);
+
+                            // Unterminated string
+                            if (i >= str.length())
+                                return str.length();
                         }
                     }
                 }
@@ -741,7 +1771,7 @@ public class XMLStruct implements Cloneable
                         --i;
                         break;
                     default:
-                        throw new BadSyntaxException("Unrecognized escape sequence: " + str +
+                        throw new BadSyntaxException(BadSyntaxException.Kind.BAD_ESCAPE, "Unrecognized escape sequence: " + str +
                                                      ", col " + i);
                 }
                 backspace = false;
@@ -756,7 +1786,7 @@ public class XMLStruct implements Cloneable
         return skipWS(str, 0) == str.length();
     }
 
-    private static boolean validXMLName(String str)
+    static boolean validXMLName(String str)
     {
         if (str.length() == 0)
             return false;
@@ -791,9 +1821,113 @@ public class XMLStruct implements Cloneable
 
     public static class BadSyntaxException extends Exception
     {
+        public enum Kind
+        {
+            CLOSE_WITHOUT_OPEN,
+            OPEN_WITHOUT_CLOSE,
+            IMPROPER_SELF_CLOSE,
+            CLOSE_MARKED_SELF_CLOSING,
+            INVALID_CLOSE_TAG,
+            INVALID_NAME,
+            ATTRIBUTE_WITHOUT_NAME,
+            ATTRIBUTE_WITHOUT_EQUALS,
+            ATTRIBUTE_WITHOUT_QUOTES,
+            BAD_ESCAPE,
+            INPUT_TOO_LARGE(true),
+            TOO_DEEP(true),
+            TOO_MANY_ATTRIBUTES(true),
+            NAME_TOO_LONG(true),
+            TEXT_TOO_LONG(true),
+            COMMENT_TOO_LONG(true),
+            TAG_TOO_LONG(true),
+            BINARY_FORMAT,
+            UNREPRESENTABLE,
+            INVALID_VALUE,
+            INVALID_STATE,
+            OTHER;
+
+            private final boolean limit;
+
+            Kind()
+            {
+                this(false);
+            }
+
+            Kind(boolean _limit)
+            {
+                limit = _limit;
+            }
+
+            // Limit violations are never recovered from
+            public boolean isLimit()
+            {
+                return limit;
+            }
+        }
+
+        private final Kind kind;
+        private long offset;
+        // Not serialized, a deserialized exception keeps its offset but has
+        // no line or column
+        private transient SourceMap lines;
+
+        // Input quoted by the message, only joined on if someone reads it
+        private final String context;
+
         public BadSyntaxException(String context)
         {
-            super(context);
+            this(Kind.OTHER, context);
+        }
+
+        public BadSyntaxException(Kind _kind, String _message)
+        {
+            this(_kind, _message, null);
+        }
+
+        public BadSyntaxException(Kind _kind, String _message, String _context)
+        {
+            super(_message);
+            kind = _kind;
+            offset = -1;
+            lines = null;
+            context = _context;
+        }
+
+        public Kind getKind()
+        {
+            return kind;
+        }
+
+        public String getMessage()
+        {
+            if (context == null)
+                return super.getMessage();
+
+            return super.getMessage() + context;
+        }
+
+        // Character offset of the offending tag in the input, -1 if unknown
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        // 1-based line of the offending tag, -1 if unknown
+        public int getLine()
+        {
+            if (lines == null)
+                return -1;
+
+            return lines.lineOf(offset);
+        }
+
+        // 1-based column of the offending tag, -1 if unknown
+        public int getColumn()
+        {
+            if (lines == null)
+                return -1;
+
+            return lines.columnOf(offset);
         }
     }
 
@@ -825,12 +1959,18 @@ public class XMLStruct implements Cloneable
                 return string;
         }
 
-        public String toStringNL()
+    }
+
+    // Only made when tracking positions, so other trees don't pay for the
+    // offset
+    private static class TrackedText extends Child
+    {
+        public final long offset;
+
+        public TrackedText(String _string, long _offset)
         {
-            if (which == 0)
-                return struct.toStringNL();
-            else
-                return string;
+            super(_string);
+            offset = _offset;
         }
     }
 
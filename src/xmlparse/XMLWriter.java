@@ -0,0 +1,388 @@
+package xmlparse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+// Writes XMLStruct trees in a single pass through a fixed-size buffer
+//
+// Compact output (no indent) parsed back with whitespace kept, as
+// parseFromString does, gives the same tree. Indented output parsed back
+// with whitespace stripped, as parseFromFile does, gives the same tree
+// with the same stripping applied. Mixed content is never indented.
+//
+// With Escape.BACKSLASH attribute values are escaped the way the parser
+// reads them, and trees that the parser could not read back (bad names,
+// text containing '<', adjacent or empty text children) are rejected
+// instead of written. The whole tree is checked before anything is
+// written, so a rejected tree leaves the output untouched, except for
+// children appended by another thread once writing has started.
+// Escape.NONE writes everything as is, like toString.
+//
+// Writes are reported to XMLStruct's metrics listener as the SERIALIZE
+// phase.
+//
+// A writer can be reused for any number of documents, but not by several
+// threads at once.
+public class XMLWriter
+{
+    public enum Escape
+    {
+        NONE,
+        BACKSLASH
+    }
+
+    private final char[] buf;
+    private int pos;
+    private Writer out;
+
+    private String indent;
+    private String newline;
+    private Escape escape;
+
+    public XMLWriter()
+    {
+        this(8192);
+    }
+
+    public XMLWriter(int bufferSize)
+    {
+        buf = new char[Math.max(bufferSize, 16)];
+        pos = 0;
+        out = null;
+
+        indent = null;
+        newline = "\n";
+        escape = Escape.BACKSLASH;
+    }
+
+    // Options
+
+    // String repeated once per level of nesting, or null for compact output.
+    // Indent and newline may only hold spaces, tabs and line breaks, so
+    // they read back as the whitespace they stand for.
+    public XMLWriter setIndent(String i)
+    {
+        if (i != null)
+            checkWhitespace("Indent", i);
+
+        indent = i;
+        return this;
+    }
+
+    // Line separator used between indented elements
+    public XMLWriter setNewline(String nl)
+    {
+        if (nl == null)
+            throw new IllegalArgumentException("Newline must not be null");
+        checkWhitespace("Newline", nl);
+
+        newline = nl;
+        return this;
+    }
+
+    public XMLWriter setEscape(Escape e)
+    {
+        escape = e;
+        return this;
+    }
+
+    // Writing
+
+    public void write(XMLStruct xml, Writer w) throws IOException, XMLStruct.BadSyntaxException
+    {
+        XMLMetrics m = XMLStruct.getMetrics();
+        long start = (m != null) ? System.nanoTime() : 0;
+        long alloc = (m != null) ? XMLStruct.allocatedBytes() : 0;
+
+        if (escape == Escape.BACKSLASH)
+        {
+            try
+            {
+                validate(xml);
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+                if (m != null)
+                    m.error(e.getKind());
+                throw e;
+            }
+        }
+
+        out = w;
+        pos = 0;
+        try
+        {
+            writeElement(xml, 0);
+            if (indent != null)
+                put(newline);
+
+            flushBuffer();
+            out.flush();
+        }
+        finally
+        {
+            out = null;
+        }
+
+        if (m != null)
+            m.phase(XMLMetrics.Phase.SERIALIZE, System.nanoTime() - start, XMLStruct.allocatedSince(alloc));
+    }
+
+    // Writes UTF-8
+    public void write(XMLStruct xml, OutputStream os) throws IOException, XMLStruct.BadSyntaxException
+    {
+        write(xml, new OutputStreamWriter(os, StandardCharsets.UTF_8));
+    }
+
+    public String writeToString(XMLStruct xml) throws XMLStruct.BadSyntaxException
+    {
+        StringWriter sw = new StringWriter();
+        try
+        {
+            write(xml, sw);
+        }
+        catch (IOException e)
+        {
+            // StringWriter doesn't throw
+        }
+        return sw.toString();
+    }
+
+    // Private
+
+    // Walks the tree the way writeElement does, checking everything it
+    // would write
+    private void validate(XMLStruct xml) throws XMLStruct.BadSyntaxException
+    {
+        checkName(xml.getName());
+
+        for (int i = 0; i < xml.getNumAttribs(); ++i)
+        {
+            checkName(xml.getAttribNameFromIndex(i));
+            checkValue(xml.getAttribValueFromIndex(i));
+        }
+
+        int numChildren = xml.getNumChildren();
+        boolean pretty = (indent != null && numChildren > 0 && elementOnly(xml));
+
+        boolean prevText = false;
+        for (int i = 0; i < numChildren; ++i)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child != null)
+            {
+                validate(child);
+                prevText = false;
+            }
+            else if (!pretty)
+            {
+                checkText(String.valueOf(xml.getChildString(i)), prevText);
+                prevText = true;
+            }
+        }
+    }
+
+    private void writeElement(XMLStruct xml, int depth) throws IOException
+    {
+        String name = xml.getName();
+
+        put('<');
+        put(name);
+
+        for (int i = 0; i < xml.getNumAttribs(); ++i)
+        {
+            String attName = xml.getAttribNameFromIndex(i);
+
+            put(' ');
+            put(attName);
+            put("=\"");
+            putValue(xml.getAttribValueFromIndex(i));
+            put('"');
+        }
+
+        put('>');
+
+        int numChildren = xml.getNumChildren();
+        boolean pretty = (indent != null && numChildren > 0 && elementOnly(xml));
+
+        for (int i = 0; i < numChildren; ++i)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child != null)
+            {
+                if (pretty)
+                {
+                    put(newline);
+                    putIndent(depth + 1);
+                }
+
+                writeElement(child, depth + 1);
+            }
+            else if (!pretty)
+            {
+                put(String.valueOf(xml.getChildString(i)));
+            }
+        }
+
+        if (pretty)
+        {
+            put(newline);
+            putIndent(depth);
+        }
+
+        put("</");
+        put(name);
+        put('>');
+    }
+
+    // Whether the only text in an element is whitespace between elements
+    private static boolean elementOnly(XMLStruct xml)
+    {
+        for (int i = 0; i < xml.getNumChildren(); ++i)
+        {
+            String text = xml.getChildString(i);
+            if (text != null && !text.trim().isEmpty())
+                return false;
+        }
+
+        return true;
+    }
+
+    private void checkName(String name) throws XMLStruct.BadSyntaxException
+    {
+        if (escape == Escape.BACKSLASH && !XMLStruct.validXMLName(name))
+            throw unrepresentable("Invalid name: " + name);
+    }
+
+    private void checkText(String text, boolean prevText) throws XMLStruct.BadSyntaxException
+    {
+        if (escape != Escape.BACKSLASH)
+            return;
+
+        if (text.isEmpty())
+            throw unrepresentable("Empty text child");
+
+        if (prevText)
+            throw unrepresentable("Adjacent text children would merge: " + text);
+
+        if (text.indexOf('<') >= 0)
+            throw unrepresentable("Text containing '<': " + text);
+
+        // A trailing backslash would escape the next tag
+        int backslashes = 0;
+        for (int i = text.length() - 1; i >= 0 && text.charAt(i) == '\\'; --i)
+            ++backslashes;
+
+        if ((backslashes & 1) != 0)
+            throw unrepresentable("Text ending in a backslash: " + text);
+    }
+
+    private void checkValue(String val) throws XMLStruct.BadSyntaxException
+    {
+        // Comments are cut before tags are read, so they can't be escaped
+        if (escape == Escape.BACKSLASH && val.indexOf("<!--") >= 0)
+            throw unrepresentable("Attribute value containing a comment: " + val);
+    }
+
+    private static void checkWhitespace(String what, String str)
+    {
+        for (int i = 0; i < str.length(); ++i)
+        {
+            char c = str.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r')
+                throw new IllegalArgumentException(what + " must be whitespace, not \"" + str + "\"");
+        }
+    }
+
+    private static XMLStruct.BadSyntaxException unrepresentable(String msg)
+    {
+        return new XMLStruct.BadSyntaxException(XMLStruct.BadSyntaxException.Kind.UNREPRESENTABLE, msg);
+    }
+
+    private void putValue(String val) throws IOException
+    {
+        if (escape != Escape.BACKSLASH)
+        {
+            put(val);
+            return;
+        }
+
+        int start = 0;
+        for (int i = 0; i < val.length(); ++i)
+        {
+            char c = val.charAt(i);
+            char e;
+
+            switch (c)
+            {
+                case '\\':
+                    e = '\\';
+                    break;
+                case '"':
+                    e = '"';
+                    break;
+                case '\'':
+                    e = '\'';
+                    break;
+                case '\n':
+                    e = 'n';
+                    break;
+                case '\t':
+                    e = 't';
+                    break;
+                default:
+                    continue;
+            }
+
+            put(val, start, i);
+            put('\\');
+            put(e);
+            start = i + 1;
+        }
+
+        put(val, start, val.length());
+    }
+
+    private void putIndent(int depth) throws IOException
+    {
+        for (int i = 0; i < depth; ++i)
+            put(indent);
+    }
+
+    private void put(char c) throws IOException
+    {
+        if (pos == buf.length)
+            flushBuffer();
+
+        buf[pos++] = c;
+    }
+
+    private void put(String str) throws IOException
+    {
+        put(str, 0, str.length());
+    }
+
+    private void put(String str, int begin, int end) throws IOException
+    {
+        while (begin < end)
+        {
+            if (pos == buf.length)
+                flushBuffer();
+
+            int n = Math.min(end - begin, buf.length - pos);
+            str.getChars(begin, begin + n, buf, pos);
+            pos += n;
+            begin += n;
+        }
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+}
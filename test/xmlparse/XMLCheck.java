@@ -0,0 +1,1772 @@
+package xmlparse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+// Differential, fuzz and scaling checks over generated corpora
+//
+//   runchecks.bat [seeds] [scale] [streamChars]
+//
+// The checks and the corpus generator live under test and are built
+// against the library, so they aren't shipped in XMLParse.jar.
+//
+// Every way of getting a tree (line-at-a-time input, files, lenient mode,
+// position tracking, limits, the binary format, XMLWriter, off-heap
+// storage and parallel parses) is compared against parseFromString, which
+// is in turn compared against the tree the sample was generated from.
+// Fuzzed input must never crash a parse, and breaking one tag of valid
+// input must make lenient mode drop exactly that element.
+// Concurrent trees are read while several threads append to them, and
+// annotated classes must round-trip through XMLBinder. Metrics, and the
+// JFR events made from them, must count exactly what ended up in a tree.
+// Scaling checks fail when parse time, allocation, peak heap or retained
+// heap per input character grow with input size. Times are medians of
+// several runs, and are only compared with generous margins. Prints one
+// line per check and exits with status 1 if any failed.
+public class XMLCheck
+{
+    private static final XMLCorpus.Shape[] SHAPES = XMLCorpus.Shape.values();
+
+    // Allowed growth in cost per character from the smallest input to the
+    // largest, which is 8 times bigger
+    private static final double MAX_TIME_GROWTH = 2.5;
+    private static final double MAX_MEMORY_GROWTH = 1.5;
+
+    // Timings are the median of this many runs, and one median may exceed
+    // another it should beat by this much before a check fails
+    private static final int TIMING_RUNS = 7;
+    private static final double TIME_MARGIN = 1.25;
+
+    private int failures;
+    private Path dir;
+
+    private XMLCheck() throws IOException
+    {
+        failures = 0;
+        dir = Files.createTempDirectory("xmlcheck");
+    }
+
+    public static void main(String[] args)
+    {
+        int seeds = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+        int scale = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        long streamChars = (args.length > 2) ? Long.parseLong(args[2]) : 256L << 20;
+
+        int failures;
+        try
+        {
+            XMLCheck check = new XMLCheck();
+            try
+            {
+                for (XMLCorpus.Shape shape : SHAPES)
+                    check.differential(shape, seeds);
+
+                for (XMLCorpus.Shape shape : SHAPES)
+                    check.fuzz(shape, seeds * 25);
+
+                check.limits();
+                check.lenient();
+                check.metrics();
+                check.writer();
+                check.binder();
+                check.numbers(seeds * 1000);
+                check.concurrency();
+
+                check.scaling(XMLCorpus.Shape.WIDE, scale);
+                check.scaling(XMLCorpus.Shape.MIXED, scale);
+                check.stream(streamChars);
+
+                check.binaryLoad(XMLCorpus.Shape.WIDE, scale * 4);
+                check.binaryLoad(XMLCorpus.Shape.MIXED, scale * 4);
+                check.binaryLoad(XMLCorpus.Shape.ATTRIBUTES, scale * 4);
+                check.offHeap(scale * 4);
+                check.binaryCorrupt();
+            }
+            finally
+            {
+                check.cleanUp();
+            }
+            failures = check.failures;
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            failures = 1;
+        }
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // Differential
+
+    private void differential(XMLCorpus.Shape shape, int seeds) throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+        List<XMLCorpus.Sample> samples = new ArrayList<XMLCorpus.Sample>();
+        List<XMLStruct> refs = new ArrayList<XMLStruct>();
+
+        for (int seed = 0; seed < seeds; ++seed)
+        {
+            XMLCorpus.Sample s = XMLCorpus.generate(shape, seed, 400);
+            String where = shape + " seed " + seed + " ";
+
+            XMLStruct ref;
+            try
+            {
+                ref = XMLStruct.parseFromString(s.text);
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+                errors.add(where + "reference parse: " + e.getMessage());
+                continue;
+            }
+
+            samples.add(s);
+            refs.add(ref);
+
+            compare(errors, where + "generated", s.tree, ref);
+
+            try
+            {
+                compareModes(errors, where, s, ref);
+            }
+            catch (XMLStruct.BadSyntaxException | RuntimeException e)
+            {
+                errors.add(where + e);
+            }
+        }
+
+        parallel(errors, samples, refs);
+
+        report("differential " + shape + " (" + seeds + " samples)", errors);
+    }
+
+    private void compareModes(List<String> errors, String where, XMLCorpus.Sample s, XMLStruct ref) throws Exception
+    {
+        compare(errors, where + "lines", ref, XMLStruct.parseFromStream(XMLCorpus.splitLines(s.text)));
+
+        Path file = dir.resolve("sample.xml");
+        Files.write(file, s.text.getBytes("UTF-8"));
+        compare(errors, where + "file", ref, XMLStruct.parseFromFile(file.toString(), true));
+
+        XMLStruct lenient = XMLStruct.parseFromString(s.text, new XMLParseOptions().setLenient(true));
+        compare(errors, where + "lenient", ref, lenient);
+        if (!lenient.getParseErrors().isEmpty())
+            errors.add(where + "lenient: unexpected errors " + lenient.getParseErrors());
+
+        XMLStruct tracked = XMLStruct.parseFromString(s.text, new XMLParseOptions().setTrackPositions(true));
+        compare(errors, where + "positions", ref, tracked);
+        checkPositions(errors, where + "positions", s.text, tracked);
+
+        XMLParseOptions limits = new XMLParseOptions()
+            .setMaxInputChars(s.text.length())
+            .setMaxDepth(1 << 16)
+            .setMaxAttributes(1 << 10)
+            .setMaxNameLength(1 << 10)
+            .setMaxTextLength(1 << 20)
+            .setMaxCommentLength(1 << 20);
+        compare(errors, where + "limits", ref, XMLStruct.parseFromString(s.text, limits));
+
+        Path bin = dir.resolve("sample.xmlb");
+        if (!ref.saveToBinary(bin))
+            errors.add(where + "binary: save failed");
+        compare(errors, where + "binary", ref, XMLStruct.loadBinary(bin));
+
+        String written = new XMLWriter().writeToString(ref);
+        compare(errors, where + "writer", ref, XMLStruct.parseFromString(written));
+
+        try (OffHeapXML copy = OffHeapXML.copyOf(ref);
+             OffHeapXML loaded = OffHeapXML.loadBinary(bin))
+        {
+            compare(errors, where + "off-heap copy", ref, copy.getRoot().toXMLStruct());
+            compare(errors, where + "off-heap binary", ref, loaded.getRoot().toXMLStruct());
+        }
+    }
+
+    // Every element child must start with its open tag, and every text
+    // child with its first character
+    private static void checkPositions(List<String> errors, String where, String text, XMLStruct xml)
+    {
+        for (int i = 0; i < xml.getNumChildren(); ++i)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child == null)
+            {
+                String str = xml.getChildString(i);
+                long offset = xml.getChildSourceOffset(i);
+                if (offset < 0 || offset >= text.length() || text.charAt((int)offset) != str.charAt(0))
+                {
+                    errors.add(where + ": text " + i + " of <" + xml.getName() + "> recorded at " + offset);
+                    return;
+                }
+                continue;
+            }
+
+            long offset = xml.getChildSourceOffset(i);
+            if (offset < 0 || offset != child.getSourceOffset() ||
+                !text.startsWith("<" + child.getName(), (int)offset))
+            {
+                errors.add(where + ": <" + child.getName() + "> recorded at " + offset);
+                return;
+            }
+
+            checkPositions(errors, where, text, child);
+        }
+    }
+
+    // Parses every sample at once
+    private void parallel(List<String> errors, List<XMLCorpus.Sample> samples, List<XMLStruct> refs) throws Exception
+    {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<XMLStruct>> results = new ArrayList<Future<XMLStruct>>();
+            for (XMLCorpus.Sample s : samples)
+                results.add(pool.submit(() -> XMLStruct.parseFromString(s.text)));
+
+            for (int i = 0; i < samples.size(); ++i)
+                compare(errors, "parallel seed " + samples.get(i).seed, refs.get(i), results.get(i).get());
+
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    // Limits
+
+    // Each limit must stop a parse with its own kind, including inputs
+    // that never close what crossed it
+    private void limits()
+    {
+        List<String> errors = new ArrayList<String>();
+        String big = repeat('x', 1 << 20);
+
+        XMLParseOptions small = new XMLParseOptions()
+            .setMaxDepth(8)
+            .setMaxAttributes(8)
+            .setMaxNameLength(64)
+            .setMaxTextLength(1024)
+            .setMaxCommentLength(1024);
+
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.TOO_DEEP, small, repeat("<a>", 9) + repeat("</a>", 9));
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.TOO_MANY_ATTRIBUTES, small, "<a" + repeat(" b=\"\"", 9) + "></a>");
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.NAME_TOO_LONG, small, "<" + repeat('a', 65) + "></a>");
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.TEXT_TOO_LONG, small, "<a>" + big + "</a>");
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.COMMENT_TOO_LONG, small, "<a><!--" + big);
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.TAG_TOO_LONG, small, "<r><a " + big);
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.TAG_TOO_LONG, new XMLParseOptions().setMaxTagLength(16),
+                    "<r><a b=\"" + big + "\"></a></r>");
+        expectLimit(errors, XMLStruct.BadSyntaxException.Kind.INPUT_TOO_LARGE, new XMLParseOptions().setMaxInputChars(1000),
+                    "<a>" + big + "</a>");
+
+        report("limits", errors);
+    }
+
+    private static void expectLimit(List<String> errors, XMLStruct.BadSyntaxException.Kind kind, XMLParseOptions opts, String text)
+    {
+        // Lenient mode must not relax limits, and lines must not hide them
+        XMLParseOptions lenient = new XMLParseOptions(opts).setLenient(true);
+        String withLines = text.replace("xxxxxxxxxxxxxxxx", "xxxxxxxxxxxxxxx\n");
+
+        for (int mode = 0; mode < 3; ++mode)
+        {
+            try
+            {
+                if (mode == 0)
+                    XMLStruct.parseFromString(text, opts);
+                else if (mode == 1)
+                    XMLStruct.parseFromString(text, lenient);
+                else
+                    XMLStruct.parseFromStream(XMLCorpus.splitLines(withLines), opts);
+
+                errors.add(kind + ": parse succeeded in mode " + mode);
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+                if (e.getKind() != kind)
+                    errors.add(kind + ": failed with " + e.getKind() + " in mode " + mode + ", " + e.getMessage());
+            }
+        }
+    }
+
+    private static String repeat(char c, int n)
+    {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static String repeat(String str, int n)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; ++i)
+            sb.append(str);
+        return sb.toString();
+    }
+
+    // Lenient recovery
+
+    // A broken element must be dropped whole with a single error, and
+    // everything around it kept
+    private void lenient() throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+
+        expectRecovered(errors, "<a><r id=\"1\"><v>1</v></r><r id=2><v>2</v></r><r id=\"3\"><v>3</v></r></a>",
+                        "<a><r id=\"1\"><v>1</v></r><r id=\"3\"><v>3</v></r></a>", 1);
+        expectRecovered(errors, "<a><r id=2><r><v>2</v></r></r>tail<r id=\"3\"/></a>",
+                        "<a>tail<r id=\"3\"/></a>", 1);
+        expectRecovered(errors, "<a><r id=2/><r id=\"3\"/></a>",
+                        "<a><r id=\"3\"/></a>", 1);
+        expectRecovered(errors, "<e><d x=1><e>y</e><g><h></g></d><f/></e>",
+                        "<e><f/></e>", 1);
+        expectRecovered(errors, "<a><r id=2\n x=\"a>b\"><v>2\n</v></\n r><c/></a>",
+                        "<a><c/></a>", 1);
+
+        // Without a close tag of its own, it runs to its parent's
+        expectRecovered(errors, "<a><b><r id=2><v>2</v></b><c/></a>",
+                        "<a><b/><c/></a>", 1);
+        expectRecovered(errors, "<a><r id=2><v>2</v></a>",
+                        "<a/>", 1);
+
+        // Close tags split across lines are handed back to the parent, and
+        // what follows them must keep its position
+        expectRecovered(errors, "<r><a><b><c>x</c></\n   a><d/></r>",
+                        "<r><a><b><c>x</c></b></a><d/></r>", 1);
+        expectRecovered(errors, "<r><a><b><c>x</c></\n <!-- c -->  a><d/>y<!--z-->w<e/></r>",
+                        "<r><a><b><c>x</c></b></a><d/>yw<e/></r>", 1);
+
+        report("lenient recovery", errors);
+    }
+
+    private static void expectRecovered(List<String> errors, String text, String expected, int numErrors) throws XMLStruct.BadSyntaxException
+    {
+        XMLStruct want = XMLStruct.parseFromString(expected);
+        XMLParseOptions lenient = new XMLParseOptions().setLenient(true);
+        XMLParseOptions tracked = new XMLParseOptions(lenient).setTrackPositions(true);
+
+        for (int mode = 0; mode < 4; ++mode)
+        {
+            XMLStruct got;
+            if (mode == 0)
+                got = XMLStruct.parseFromString(text, lenient);
+            else if (mode == 1)
+                got = XMLStruct.parseFromStream(XMLCorpus.splitLines(text), lenient);
+            else if (mode == 2)
+                got = XMLStruct.parseFromString(text, tracked);
+            else
+                got = XMLStruct.parseFromStream(XMLCorpus.splitLines(text), tracked);
+
+            String where = text.replace("\n", "\\n") + " in mode " + mode;
+            compare(errors, where, want, got);
+            if (got.getParseErrors().size() != numErrors)
+                errors.add(where + ": " + got.getParseErrors().size() + " errors, expected " + numErrors);
+            if (mode >= 2)
+                checkPositions(errors, where, text, got);
+        }
+    }
+
+    // Metrics
+
+    // Documents must report counts of what ended up in the tree, with one
+    // error call per error, and XMLJfrMetrics must turn the same calls into
+    // events
+    private void metrics() throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+        XMLParseOptions lenient = new XMLParseOptions().setLenient(true);
+        XMLStruct.BadSyntaxException.Kind[] kinds = XMLStruct.BadSyntaxException.Kind.values();
+
+        // <b> is dropped with its attribute and text, <d> is closed by </a>
+        String text = "<a x=\"1\"><b x=1>q</b><c y=\"2\">t</c><d><e/></a>";
+        int[] expected = {4, 2, 1, 3};
+        int[] expectedErrors = new int[kinds.length];
+        ++expectedErrors[XMLStruct.BadSyntaxException.Kind.ATTRIBUTE_WITHOUT_QUOTES.ordinal()];
+        ++expectedErrors[XMLStruct.BadSyntaxException.Kind.OPEN_WITHOUT_CLOSE.ordinal()];
+
+        MetricsRecorder recorder = new MetricsRecorder();
+        XMLMetrics previous = XMLStruct.getMetrics();
+        XMLStruct.setMetrics(recorder);
+        try
+        {
+            XMLStruct.parseFromString("<a><b x=1>q</b><c/></a>", lenient);
+            expectCounts(errors, "dropped element", recorder, new int[] {2, 0, 0, 2});
+
+            recorder = new MetricsRecorder();
+            XMLStruct.setMetrics(recorder);
+            XMLStruct.parseFromStream(XMLCorpus.splitLines(text), lenient);
+            expectCounts(errors, "lenient", recorder, expected);
+            if (!Arrays.equals(recorder.errors, expectedErrors))
+                errors.add("lenient errors " + Arrays.toString(recorder.errors) + ", expected " + Arrays.toString(expectedErrors));
+
+            // A failed parse reports its one error and no document
+            String[] failing = {"<a><b></a>", "<a><b><c/></b></a>"};
+            XMLParseOptions[] failingOpts = {new XMLParseOptions(), new XMLParseOptions(lenient).setMaxDepth(2)};
+            for (int k = 0; k < failing.length; ++k)
+            {
+                recorder = new MetricsRecorder();
+                XMLStruct.setMetrics(recorder);
+                try
+                {
+                    XMLStruct.parseFromString(failing[k], failingOpts[k]);
+                    errors.add(failing[k] + ": parsed");
+                }
+                catch (XMLStruct.BadSyntaxException e)
+                {
+                    int[] one = new int[kinds.length];
+                    ++one[e.getKind().ordinal()];
+                    if (!Arrays.equals(recorder.errors, one) || recorder.documents != 0)
+                        errors.add(failing[k] + ": errors " + Arrays.toString(recorder.errors) + " and " +
+                                   recorder.documents + " documents for one " + e.getKind());
+                }
+            }
+
+            Path jfr = dir.resolve("metrics.jfr");
+            try (Recording recording = new Recording())
+            {
+                recording.enable("xmlparse.Phase");
+                recording.enable("xmlparse.Document");
+                recording.enable("xmlparse.Error");
+                recording.start();
+
+                XMLStruct.setMetrics(new XMLJfrMetrics());
+                XMLStruct.parseFromString(text, lenient);
+
+                recording.stop();
+                recording.dump(jfr);
+            }
+
+            int phases = 0;
+            List<String> documents = new ArrayList<String>();
+            int[] jfrErrors = new int[kinds.length];
+            for (RecordedEvent e : RecordingFile.readAllEvents(jfr))
+            {
+                String name = e.getEventType().getName();
+                if (name.equals("xmlparse.Phase"))
+                    ++phases;
+                else if (name.equals("xmlparse.Document"))
+                    documents.add(e.getInt("elements") + " " + e.getInt("attributes") + " " + e.getInt("texts") + " " + e.getInt("maxDepth"));
+                else if (name.equals("xmlparse.Error"))
+                    ++jfrErrors[XMLStruct.BadSyntaxException.Kind.valueOf(e.getString("kind")).ordinal()];
+            }
+
+            String want = expected[0] + " " + expected[1] + " " + expected[2] + " " + expected[3];
+            if (phases != 2)
+                errors.add("JFR: " + phases + " phase events, expected 2");
+            if (documents.size() != 1 || !documents.get(0).equals(want))
+                errors.add("JFR: document events " + documents + ", expected [" + want + "]");
+            if (!Arrays.equals(jfrErrors, expectedErrors))
+                errors.add("JFR: errors " + Arrays.toString(jfrErrors) + ", expected " + Arrays.toString(expectedErrors));
+        }
+        finally
+        {
+            XMLStruct.setMetrics(previous);
+        }
+
+        report("metrics", errors);
+    }
+
+    // Expected elements, attributes, texts and depth of a single document
+    private static void expectCounts(List<String> errors, String where, MetricsRecorder recorder, int[] expected)
+    {
+        int[] got = {recorder.elements, recorder.attributes, recorder.texts, recorder.maxDepth};
+        if (recorder.documents != 1 || !Arrays.equals(got, expected))
+            errors.add(where + ": " + recorder.documents + " documents, counts " + Arrays.toString(got) +
+                       ", expected " + Arrays.toString(expected));
+    }
+
+    private static class MetricsRecorder implements XMLMetrics
+    {
+        public int documents = 0;
+        public int elements;
+        public int attributes;
+        public int texts;
+        public int maxDepth;
+        public int[] errors = new int[XMLStruct.BadSyntaxException.Kind.values().length];
+
+        public void parsed(long bytes, long chars, int elements, int attributes, int texts, int maxDepth)
+        {
+            ++documents;
+            this.elements = elements;
+            this.attributes = attributes;
+            this.texts = texts;
+            this.maxDepth = maxDepth;
+        }
+
+        public void error(XMLStruct.BadSyntaxException.Kind kind)
+        {
+            ++errors[kind.ordinal()];
+        }
+    }
+
+    // Writer
+
+    // Trees the parser couldn't read back must be rejected before anything
+    // is written, however late in the tree the problem is, and writes must
+    // reach the metrics listener
+    private void writer() throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+
+        XMLStruct good = XMLCorpus.generate(XMLCorpus.Shape.WIDE, 0, 200).tree;
+        String[] bad = {"bad name", "text <", "adjacent", "comment", "backslash"};
+
+        WriteCounter counter = new WriteCounter();
+        XMLMetrics previous = XMLStruct.getMetrics();
+        XMLStruct.setMetrics(counter);
+        try
+        {
+            for (String what : bad)
+            {
+                XMLStruct xml = new XMLStruct(good);
+                XMLStruct last = new XMLStruct("last");
+                xml.addChild(last);
+
+                if (what.equals("bad name"))
+                    last.addChild(new XMLStruct("1bad"));
+                else if (what.equals("text <"))
+                    last.addChild("a < b");
+                else if (what.equals("adjacent"))
+                    last.addChild("a").addChild("b");
+                else if (what.equals("comment"))
+                    last.addAttribute("c", "<!-- -->");
+                else
+                    last.addChild("a\\");
+
+                // Smaller than the output, so it is flushed as it goes
+                StringWriter sw = new StringWriter();
+                try
+                {
+                    new XMLWriter(16).write(xml, sw);
+                    errors.add(what + ": written");
+                }
+                catch (XMLStruct.BadSyntaxException e)
+                {
+                    if (e.getKind() != XMLStruct.BadSyntaxException.Kind.UNREPRESENTABLE)
+                        errors.add(what + ": failed with " + e.getKind());
+                    if (sw.getBuffer().length() > 0)
+                        errors.add(what + ": " + sw.getBuffer().length() + " chars written before failing");
+                }
+            }
+
+            new XMLWriter(16).writeToString(good);
+            new XMLWriter(16).setIndent("  ").writeToString(good);
+        }
+        finally
+        {
+            XMLStruct.setMetrics(previous);
+        }
+
+        if (counter.errors != bad.length)
+            errors.add(counter.errors + " errors reported for " + bad.length + " rejected trees");
+        if (counter.writes != 2)
+            errors.add(counter.writes + " writes reported for 2 written trees");
+
+        // Anything but whitespace would be written out as text
+        String[] notWhitespace = {"x", " -", "\u00a0", "\n<"};
+        for (String str : notWhitespace)
+        {
+            try
+            {
+                new XMLWriter().setIndent(str);
+                errors.add("indent \"" + str + "\" accepted");
+            }
+            catch (IllegalArgumentException e)
+            {
+            }
+
+            try
+            {
+                new XMLWriter().setNewline(str);
+                errors.add("newline \"" + str + "\" accepted");
+            }
+            catch (IllegalArgumentException e)
+            {
+            }
+        }
+
+        new XMLWriter().setIndent(" \t").setNewline("\r\n").setIndent(null).setIndent("");
+
+        report("writer", errors);
+    }
+
+    private static class WriteCounter implements XMLMetrics
+    {
+        public int writes = 0;
+        public int errors = 0;
+
+        public void phase(Phase phase, long nanos, long allocatedBytes)
+        {
+            if (phase == Phase.SERIALIZE)
+                ++writes;
+        }
+
+        public void error(XMLStruct.BadSyntaxException.Kind kind)
+        {
+            if (kind == XMLStruct.BadSyntaxException.Kind.UNREPRESENTABLE)
+                ++errors;
+        }
+    }
+
+    // Binder
+
+    // Bound objects must survive writing and parsing back, fields with
+    // nothing to read must keep their defaults, and bad values must fail
+    // with INVALID_VALUE
+    private void binder() throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+
+        BoundOrder order = new BoundOrder();
+        order.version = 1L << 40;
+        order.count = -3;
+        order.weight = 2.5;
+        order.paid = true;
+        order.total = 12L;
+        order.rate = 0.125;
+        order.note = "a < b & \"c\"";
+        order.owner = "Ann";
+        order.priority = 7;
+        order.address = new BoundAddress();
+        order.address.zip = 12345;
+        order.address.city = "Oslo";
+        order.tags = Arrays.asList("x", "", "z");
+        order.quantities = Arrays.asList(1, -2, 3);
+        order.items = new ArrayList<BoundItem>();
+        for (int i = 0; i < 3; ++i)
+        {
+            BoundItem item = new BoundItem();
+            item.id = i;
+            item.label = "item " + i;
+            order.items.add(item);
+        }
+
+        XMLStruct xml = XMLBinder.toXML(order);
+        String text = new XMLWriter().writeToString(xml);
+        BoundOrder back = XMLBinder.fromXML(XMLStruct.parseFromString(text), BoundOrder.class);
+
+        if (back.version != order.version)
+            errors.add("superclass field: " + back.version);
+        if (back.count != order.count || back.weight != order.weight || !back.paid)
+            errors.add("primitive fields: " + back.count + " " + back.weight + " " + back.paid);
+        if (!order.total.equals(back.total) || !order.rate.equals(back.rate) || !order.priority.equals(back.priority))
+            errors.add("boxed fields: " + back.total + " " + back.rate + " " + back.priority);
+        if (!order.note.equals(back.note) || !order.owner.equals(back.owner))
+            errors.add("string fields: " + back.note + " " + back.owner);
+        if (back.address == null || back.address.zip != 12345 || !"Oslo".equals(back.address.city))
+            errors.add("nested class: " + XMLBinder.toXML(order).getChildElement("address"));
+        if (!order.tags.equals(back.tags) || !order.quantities.equals(back.quantities))
+            errors.add("scalar lists: " + back.tags + " " + back.quantities);
+
+        if (back.items.size() != order.items.size())
+            errors.add("object list: " + back.items.size() + " items");
+        for (int i = 0; i < Math.min(back.items.size(), order.items.size()); ++i)
+        {
+            if (back.items.get(i).id != i || !order.items.get(i).label.equals(back.items.get(i).label))
+                errors.add("object list item " + i + ": " + XMLBinder.toXML(back.items.get(i)));
+        }
+
+        compare(errors, "binder round trip", xml, XMLBinder.toXML(back));
+
+        // Nothing to read leaves the constructor's values, lists read empty
+        BoundOrder empty = XMLBinder.fromXML(XMLStruct.parseFromString("<order/>"), BoundOrder.class);
+        if (empty.version != 0 || empty.count != 0 || empty.weight != 0 || empty.paid)
+            errors.add("missing primitives set");
+        if (empty.total != null || empty.rate != null || empty.priority != null ||
+            empty.note != null || empty.owner != null || empty.address != null)
+            errors.add("missing objects set");
+        if (empty.tags == null || !empty.tags.isEmpty() || empty.items == null || !empty.items.isEmpty())
+            errors.add("missing lists not empty");
+
+        String[] bad = {
+            "<order count=\"x\"/>",
+            "<order count=\"99999999999\"/>",
+            "<order version=\"1.5\"/>",
+            "<order weight=\"1f\"/>",
+            "<order paid=\"yes\"/>",
+            "<order total=\"\"/>",
+            "<order><priority>high</priority></order>",
+            "<order><qty>1</qty><qty>2.5</qty></order>",
+            "<order><item id=\"one\"/></order>",
+            "<order><address zip=\"0x10\"/></order>",
+            "<other/>"
+        };
+        for (String b : bad)
+        {
+            try
+            {
+                XMLBinder.fromXML(XMLStruct.parseFromString(b), BoundOrder.class);
+                errors.add(b + ": bound");
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+                if (e.getKind() != XMLStruct.BadSyntaxException.Kind.INVALID_VALUE)
+                    errors.add(b + ": failed with " + e.getKind());
+            }
+        }
+
+        // Anything but a List must be rejected with the class, not only
+        // once a child turns up
+        try
+        {
+            XMLBinder.fromXML(XMLStruct.parseFromString("<bad/>"), BoundArrayList.class);
+            errors.add("ArrayList field bound");
+        }
+        catch (IllegalArgumentException e)
+        {
+        }
+
+        report("binder", errors);
+    }
+
+    private static class BoundBase
+    {
+        @XMLAttribute("version")
+        public long version;
+    }
+
+    @XMLElement("order")
+    private static class BoundOrder extends BoundBase
+    {
+        @XMLAttribute("count")
+        public int count;
+        @XMLAttribute("weight")
+        public double weight;
+        @XMLAttribute("paid")
+        public boolean paid;
+        @XMLAttribute("total")
+        public Long total;
+        @XMLAttribute("rate")
+        public Double rate;
+        @XMLAttribute("note")
+        public String note;
+
+        @XMLElement("owner")
+        public String owner;
+        @XMLElement("priority")
+        public Integer priority;
+        @XMLElement("address")
+        public BoundAddress address;
+        @XMLElement("tag")
+        public List<String> tags;
+        @XMLElement("qty")
+        public List<Integer> quantities;
+        @XMLElement("item")
+        public List<BoundItem> items;
+    }
+
+    private static class BoundAddress
+    {
+        @XMLAttribute("zip")
+        public int zip;
+        @XMLElement("city")
+        public String city;
+    }
+
+    @XMLElement("item")
+    private static class BoundItem
+    {
+        @XMLAttribute("id")
+        public int id;
+        @XMLText
+        public String label;
+    }
+
+    @XMLElement("bad")
+    private static class BoundArrayList
+    {
+        @XMLElement("item")
+        public ArrayList<BoundItem> items;
+    }
+
+    // Numbers
+
+    // Typed getters must agree with Double.parseDouble on decimals, and
+    // reject the Java literal forms it also takes
+    private void numbers(int runs)
+    {
+        List<String> errors = new ArrayList<String>();
+        Random rand = new Random(runs);
+        boolean[] ok = new boolean[1];
+
+        for (int run = 0; run < runs; ++run)
+        {
+            String str;
+            switch (run % 3)
+            {
+                case 0:
+                    str = Long.toString(rand.nextLong() >> rand.nextInt(64)) + "." + rand.nextInt(1000000);
+                    break;
+                case 1:
+                    str = Double.toString(rand.nextDouble() * Math.pow(10, rand.nextInt(600) - 300));
+                    break;
+                default:
+                    str = rand.nextInt(100000) + "e" + (rand.nextInt(40) - 20);
+            }
+
+            double v = new XMLStruct("a", "v", str).getAttribDouble("v", -1, ok);
+            if (!ok[0] || Double.compare(v, Double.parseDouble(str)) != 0)
+                errors.add(str + " parsed as " + v);
+        }
+
+        String[] bad = {"1f", "2d", "1.5F", "3D", "0x10", "0x1p3", "-0X1P-2", "1e", "1e+", ".", "1 2"};
+        for (String str : bad)
+        {
+            new XMLStruct("a", "v", str).getAttribDouble("v", -1, ok);
+            if (ok[0])
+                errors.add(str + " accepted");
+        }
+
+        report("numbers (" + runs + " runs)", errors);
+    }
+
+    // Concurrency
+
+    // Writers append to subtrees of their own and all to one shared node,
+    // while readers check that what they see only ever grows and is
+    // complete up to the size they read. The same run on a plain tree must
+    // go wrong, or it proves nothing about the concurrent one.
+    private void concurrency() throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+
+        int writers = 4;
+        int readers = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        errors.addAll(stress(true, writers, readers));
+
+        List<String> plain = stress(false, writers, readers);
+        if (plain.isEmpty())
+            errors.add("no errors found in a plain tree");
+        else
+            System.out.println("     plain tree: " + plain.get(0));
+
+        // Appends to one node must stay amortized constant time
+        double[] perAppend = new double[2];
+        int[] sizes = {100000, 800000};
+        for (int k = 0; k < sizes.length; ++k)
+        {
+            long[] runs = new long[TIMING_RUNS];
+            for (int run = 0; run < runs.length; ++run)
+            {
+                XMLStruct node = new XMLStruct("node").setConcurrent(true);
+                long start = System.nanoTime();
+                for (int n = 0; n < sizes[k]; ++n)
+                    node.addChild("x");
+                runs[run] = System.nanoTime() - start;
+            }
+            perAppend[k] = (double)median(runs) / sizes[k];
+        }
+        checkGrowth(errors, "concurrent append time", perAppend[0], perAppend[1], MAX_TIME_GROWTH);
+
+        report("concurrency (" + writers + " writers, " + readers + " readers)", errors);
+    }
+
+    private static List<String> stress(boolean concurrent, int writers, int readers) throws Exception
+    {
+        List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        int appends = 50000;
+
+        XMLStruct root = new XMLStruct("root").setConcurrent(concurrent);
+        XMLStruct shared = new XMLStruct("shared");
+        root.addChild(shared);
+
+        XMLStruct[] own = new XMLStruct[writers];
+        for (int w = 0; w < writers; ++w)
+        {
+            own[w] = new XMLStruct("own");
+            root.addChild(own[w]);
+        }
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService pool = Executors.newFixedThreadPool(writers + readers);
+        try
+        {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (int w = 0; w < writers; ++w)
+            {
+                XMLStruct mine = own[w];
+                String id = Integer.toString(w);
+                tasks.add(pool.submit(() ->
+                    {
+                        for (int n = 0; n < appends; ++n)
+                        {
+                            String num = Integer.toString(n);
+                            XMLStruct e = new XMLStruct("e", "n", num);
+                            mine.addChild(e);
+                            e.addChild(new XMLStruct("leaf"));
+
+                            if (n % 8 == 0)
+                                mine.addAttribute("a" + (n / 8), num);
+
+                            shared.addChild(new XMLStruct("e", "w", id, "n", num));
+
+                            // Interleave more often when there are few cores
+                            if (n % 64 == 0)
+                                Thread.yield();
+                        }
+                    }));
+            }
+
+            List<Future<?>> readTasks = new ArrayList<Future<?>>();
+            // Half the readers watch the shared node, so that on few cores
+            // a reader is often switched out part way through walking it
+            for (int r = 0; r < readers; ++r)
+            {
+                boolean watchShared = (r % 2 == 1);
+                readTasks.add(pool.submit(() ->
+                    {
+                        int[] seen = new int[writers];
+                        while (!done.get() && errors.isEmpty())
+                        {
+                            if (watchShared)
+                            {
+                                checkShared(errors, shared, writers);
+                                continue;
+                            }
+
+                            for (int w = 0; w < writers; ++w)
+                                seen[w] = checkOwn(errors, own[w], seen[w]);
+                        }
+                    }));
+            }
+
+            // A plain tree can throw anywhere
+            for (Future<?> f : tasks)
+                joinTask(errors, "writer", f);
+            done.set(true);
+            for (Future<?> f : readTasks)
+                joinTask(errors, "reader", f);
+
+            for (int w = 0; w < writers; ++w)
+                checkOwn(errors, own[w], appends);
+            checkShared(errors, shared, writers);
+
+            if (shared.getNumChildren() != writers * appends)
+                errors.add("shared node has " + shared.getNumChildren() + " children, expected " + writers * appends);
+            XMLStruct first = own[0].getChildElement(0);
+            if (root.getNumChildren() != writers + 1 || first == null || first.isConcurrent() != concurrent)
+                errors.add("root or subtree concurrent mode not " + concurrent);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        return errors;
+    }
+
+    private static void joinTask(List<String> errors, String what, Future<?> f) throws InterruptedException
+    {
+        try
+        {
+            f.get();
+        }
+        catch (ExecutionException e)
+        {
+            errors.add(what + " threw " + e.getCause());
+        }
+    }
+
+    // Returns the number of children seen, which must never shrink
+    private static int checkOwn(List<String> errors, XMLStruct node, int seen)
+    {
+        int n = node.getNumChildren();
+        if (n < seen)
+            errors.add("children went from " + seen + " to " + n);
+
+        for (int i = 0; i < n; ++i)
+        {
+            XMLStruct e = node.getChildElement(i);
+            if (e == null || e.getAttribInt("n", -1) != i)
+            {
+                errors.add("child " + i + " of " + n + " is " + e);
+                break;
+            }
+        }
+
+        int a = node.getNumAttribs();
+        for (int i = 0; i < a; ++i)
+        {
+            String val = node.getAttribValueFromName("a" + i);
+            if (val == null || !val.equals(Integer.toString(i * 8)))
+            {
+                errors.add("attribute a" + i + " of " + a + " is " + val);
+                break;
+            }
+        }
+
+        return n;
+    }
+
+    // Each writer's appends must appear in the order they were made.
+    // toString walks every list with an iterator, which must not notice
+    // appends made during the walk.
+    private static void checkShared(List<String> errors, XMLStruct node, int writers)
+    {
+        if (!node.toString().endsWith("</shared>"))
+            errors.add("shared node written incompletely");
+
+        int[] next = new int[writers];
+        int n = node.getNumChildren();
+        for (int i = 0; i < n; ++i)
+        {
+            XMLStruct e = node.getChildElement(i);
+            int w = (e == null) ? -1 : e.getAttribInt("w", -1);
+            if (w < 0 || w >= writers || e.getAttribInt("n", -1) != next[w])
+            {
+                errors.add("shared child " + i + " is " + e);
+                return;
+            }
+            ++next[w];
+        }
+    }
+
+    // Fuzz
+
+    private static final String FUZZ_CHARS = "<>/=\"'!-\\ \n\tax";
+
+    private void fuzz(XMLCorpus.Shape shape, int runs)
+    {
+        List<String> errors = new ArrayList<String>();
+        Random rand = new Random(shape.ordinal());
+
+        for (int run = 0; run < runs; ++run)
+        {
+            XMLCorpus.Sample s = XMLCorpus.generate(shape, run, 60);
+            String text = mutate(s.text, rand);
+            String where = shape + " run " + run + " ";
+
+            XMLStruct strict = null;
+            try
+            {
+                strict = XMLStruct.parseFromString(text);
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+            }
+            catch (RuntimeException | StackOverflowError e)
+            {
+                errors.add(where + "strict: " + e);
+            }
+
+            try
+            {
+                XMLStruct lenient = XMLStruct.parseFromString(text, new XMLParseOptions().setLenient(true));
+                if (strict != null)
+                {
+                    compare(errors, where + "lenient", strict, lenient);
+                    if (!lenient.getParseErrors().isEmpty())
+                        errors.add(where + "lenient: errors on valid input " + lenient.getParseErrors());
+                }
+                else if (lenient.getParseErrors().isEmpty())
+                {
+                    errors.add(where + "lenient: no errors on input strict mode rejects");
+                }
+
+                breakOne(errors, where, s, rand);
+            }
+            catch (XMLStruct.BadSyntaxException | RuntimeException | StackOverflowError e)
+            {
+                errors.add(where + "lenient: " + e);
+            }
+
+            try
+            {
+                XMLStruct tracked = XMLStruct.parseFromString(text, new XMLParseOptions().setTrackPositions(true));
+                if (strict != null)
+                    compare(errors, where + "positions", strict, tracked);
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+                if (strict != null)
+                    errors.add(where + "positions: " + e.getMessage());
+                else if (e.getLine() < 1 || e.getColumn() < 1)
+                    errors.add(where + "positions: no location for " + e.getMessage());
+            }
+            catch (RuntimeException | StackOverflowError e)
+            {
+                errors.add(where + "positions: " + e);
+            }
+        }
+
+        report("fuzz " + shape + " (" + runs + " runs)", errors);
+    }
+
+    // Breaks the open tag of one element of a valid sample, which lenient
+    // mode must drop whole, leaving exactly the rest of the tree
+    private static void breakOne(List<String> errors, String where, XMLCorpus.Sample s, Random rand) throws XMLStruct.BadSyntaxException
+    {
+        XMLStruct tracked = XMLStruct.parseFromString(s.text, new XMLParseOptions().setTrackPositions(true));
+
+        List<XMLStruct> elements = new ArrayList<XMLStruct>();
+        collect(tracked, elements);
+        if (elements.size() < 2)
+            return;
+
+        // Never the root, which has nothing to recover into
+        XMLStruct drop = elements.get(1 + rand.nextInt(elements.size() - 1));
+        int at = (int)drop.getSourceOffset() + 1 + drop.getName().length();
+        String text = s.text.substring(0, at) + " broken=1" + s.text.substring(at);
+
+        XMLStruct expected = without(tracked, drop);
+        XMLParseOptions lenient = new XMLParseOptions().setLenient(true);
+        where = where + "dropping <" + drop.getName() + "> at " + drop.getSourceOffset() + ", ";
+
+        for (int mode = 0; mode < 2; ++mode)
+        {
+            XMLStruct got = (mode == 0) ? XMLStruct.parseFromString(text, lenient) :
+                XMLStruct.parseFromStream(XMLCorpus.splitLines(text), lenient);
+
+            compare(errors, where + (mode == 0 ? "string" : "lines"), expected, got);
+            if (got.getParseErrors().size() != 1)
+                errors.add(where + got.getParseErrors().size() + " errors " + got.getParseErrors());
+        }
+    }
+
+    private static void collect(XMLStruct xml, List<XMLStruct> elements)
+    {
+        elements.add(xml);
+        for (int i = 0; i < xml.getNumChildren(); ++i)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child != null)
+                collect(child, elements);
+        }
+    }
+
+    // A copy of the tree without one element
+    private static XMLStruct without(XMLStruct xml, XMLStruct drop)
+    {
+        XMLStruct copy = new XMLStruct(xml.getName());
+        for (int i = 0; i < xml.getNumAttribs(); ++i)
+            copy.addAttribute(xml.getAttribNameFromIndex(i), xml.getAttribValueFromIndex(i));
+
+        for (int i = 0; i < xml.getNumChildren(); ++i)
+        {
+            XMLStruct child = xml.getChildElement(i);
+            if (child == null)
+                copy.addChild(xml.getChildString(i));
+            else if (child != drop)
+                copy.addChild(without(child, drop));
+        }
+
+        return copy;
+    }
+
+    private static String mutate(String text, Random rand)
+    {
+        StringBuilder sb = new StringBuilder(text);
+
+        int edits = 1 + rand.nextInt(4);
+        for (int i = 0; i < edits && sb.length() > 0; ++i)
+        {
+            int at = rand.nextInt(sb.length());
+            int len = Math.min(1 + rand.nextInt(8), sb.length() - at);
+
+            switch (rand.nextInt(4))
+            {
+                case 0:
+                    sb.delete(at, at + len);
+                    break;
+                case 1:
+                    sb.insert(at, FUZZ_CHARS.charAt(rand.nextInt(FUZZ_CHARS.length())));
+                    break;
+                case 2:
+                    sb.insert(at, sb.substring(at, at + len));
+                    break;
+                default:
+                    sb.setLength(at);
+            }
+        }
+
+        return sb.toString();
+    }
+
+    // Scaling
+
+    private void scaling(XMLCorpus.Shape shape, int scale) throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+        int[] sizes = {scale, scale * 2, scale * 4, scale * 8};
+        String[] texts = new String[sizes.length];
+        for (int i = 0; i < sizes.length; ++i)
+            texts[i] = XMLCorpus.generate(shape, i, sizes[i]).text;
+
+        // Warm up on the largest input so the smallest isn't measured cold
+        for (int i = 0; i < 3; ++i)
+            XMLStruct.parseFromString(texts[texts.length - 1]);
+
+        AllocationMeter meter = new AllocationMeter();
+        XMLMetrics previous = XMLStruct.getMetrics();
+        XMLStruct.setMetrics(meter);
+
+        double[] time = new double[sizes.length];
+        double[] alloc = new double[sizes.length];
+        double[] peak = new double[sizes.length];
+        double[] retained = new double[sizes.length];
+        try
+        {
+            for (int i = 0; i < sizes.length; ++i)
+            {
+                // Start each size from an empty heap, so collections left
+                // over from the previous size aren't counted against it
+                usedHeap();
+
+                long[] runs = new long[TIMING_RUNS];
+                for (int run = 0; run < runs.length; ++run)
+                {
+                    long start = System.nanoTime();
+                    XMLStruct.parseFromString(texts[i]);
+                    runs[run] = System.nanoTime() - start;
+                }
+
+                long before = usedHeap();
+                resetPeakHeap();
+                XMLStruct xml = XMLStruct.parseFromString(texts[i]);
+                long highest = peakHeap();
+                long after = usedHeap();
+
+                int chars = texts[i].length();
+                time[i] = (double)median(runs) / chars;
+                alloc[i] = (double)meter.bytes / chars;
+                peak[i] = (double)(highest - before) / chars;
+                retained[i] = (double)(after - before) / chars;
+
+                System.out.printf("     %-6s %10d chars %8.1f ns/char %8.1f B/char allocated %8.1f B/char peak %8.1f B/char retained (%d nodes)%n",
+                                  shape, chars, time[i], alloc[i], peak[i], retained[i], xml.getNumChildren());
+            }
+        }
+        finally
+        {
+            XMLStruct.setMetrics(previous);
+        }
+
+        int last = sizes.length - 1;
+        checkGrowth(errors, "time", time[0], time[last], MAX_TIME_GROWTH);
+        if (meter.bytes >= 0)
+            checkGrowth(errors, "allocation", alloc[0], alloc[last], MAX_MEMORY_GROWTH);
+        checkGrowth(errors, "peak heap", peak[0], peak[last], MAX_MEMORY_GROWTH);
+        checkGrowth(errors, "retained heap", retained[0], retained[last], MAX_MEMORY_GROWTH);
+
+        report("scaling " + shape + " (" + sizes[0] + " to " + sizes[last] + " nodes)", errors);
+    }
+
+    private static void checkGrowth(List<String> errors, String what, double small, double large, double max)
+    {
+        if (small > 0 && large / small > max)
+            errors.add(String.format("%s per char grew %.2fx, limit %.2fx", what, large / small, max));
+    }
+
+    private static class AllocationMeter implements XMLMetrics
+    {
+        public volatile long bytes = -1;
+
+        public void phase(Phase phase, long nanos, long allocatedBytes)
+        {
+            if (phase == Phase.PARSE)
+                bytes = allocatedBytes;
+        }
+    }
+
+    private static long usedHeap()
+    {
+        MemoryMXBean mem = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; ++i)
+            System.gc();
+
+        return mem.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void resetPeakHeap()
+    {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    // Highest use of each heap pool since resetPeakHeap, summed. The pools
+    // may peak at different moments, so this can overstate the true peak,
+    // but never understates it.
+    private static long peakHeap()
+    {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+                total += pool.getPeakUsage().getUsed();
+        }
+
+        return total;
+    }
+
+    private static long median(long[] samples)
+    {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    // Streams
+
+    // A generated stream far larger than what it parses to, which must be
+    // parsed in memory proportional to the tree rather than the input
+    private void stream(long chars) throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+
+        XMLCorpus.LineStream stream = XMLCorpus.stream(chars, chars);
+        long before = usedHeap();
+        long start = System.nanoTime();
+        XMLStruct xml = XMLStruct.parseFromStream(stream);
+        long nanos = System.nanoTime() - start;
+        long retained = usedHeap() - before;
+
+        int items = 0;
+        for (int i = 0; i < xml.getNumChildren(); ++i)
+        {
+            XMLStruct item = xml.getChildElement(i);
+            if (item == null)
+                continue;
+
+            if (item.getAttribInt("n", -1) != items)
+                errors.add("item " + items + " out of order");
+            ++items;
+        }
+
+        if (items != stream.getItemCount())
+            errors.add(items + " items parsed, " + stream.getItemCount() + " generated");
+
+        // Generous allowance per item, nothing for the comments around them
+        long allowed = (16L << 20) + 1024L * items;
+        if (retained > allowed)
+            errors.add("retained " + (retained >> 20) + "MB for " + items + " items");
+
+        System.out.printf("     stream %d chars in %d ms, %.1f MB/s, %d items, %dKB retained%n",
+                          stream.getCharCount(), nanos / 1000000, stream.getCharCount() * 1e3 / nanos, items, retained >> 10);
+
+        // Lines added to a generated stream follow the generated ones
+        XMLCorpus.LineStream small = XMLCorpus.stream(1, 1000);
+        small.add("<!-- added -->\n");
+        String last = null;
+        for (String line = small.get(); line != null; line = small.get())
+            last = line;
+        if (!"<!-- added -->\n".equals(last))
+            errors.add("added line not last, got " + last);
+
+        report("stream (" + (stream.getCharCount() >> 20) + "MB)", errors);
+    }
+
+    // Binary format
+
+    // Loading the binary form of a document must not be slower than parsing
+    // its text, beyond timing noise
+    private void binaryLoad(XMLCorpus.Shape shape, int size) throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+
+        XMLCorpus.Sample s = XMLCorpus.generate(shape, size, size);
+        Path text = dir.resolve("load.xml");
+        Path bin = dir.resolve("load.xmlb");
+        Files.write(text, s.text.getBytes("UTF-8"));
+        s.tree.saveToBinary(bin);
+
+        long[] parseRuns = new long[TIMING_RUNS];
+        long[] loadRuns = new long[TIMING_RUNS];
+        for (int run = 0; run < TIMING_RUNS; ++run)
+        {
+            long start = System.nanoTime();
+            XMLStruct parsed = XMLStruct.parseFromFile(text.toString(), true);
+            parseRuns[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            XMLStruct loaded = XMLStruct.loadBinary(bin);
+            loadRuns[run] = System.nanoTime() - start;
+
+            if (run == 0)
+                compare(errors, "binary load", parsed, loaded);
+        }
+
+        long parse = median(parseRuns);
+        long load = median(loadRuns);
+
+        System.out.printf("     %-10s text %8dKB %6d ms, binary %8dKB %6d ms, %.1fx faster%n",
+                          shape, Files.size(text) >> 10, parse / 1000000, Files.size(bin) >> 10,
+                          load / 1000000, (double)parse / load);
+
+        if (load > parse * TIME_MARGIN)
+            errors.add("binary load took " + load / 1000000 + " ms, text parse " + parse / 1000000 + " ms");
+
+        report("binary load " + shape, errors);
+    }
+
+    // Corrupt binaries
+
+    // Damaged or hostile files must fail with BINARY_FORMAT from both
+    // loaders, never with another exception or by running out of stack
+    private void binaryCorrupt() throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+        Path bin = dir.resolve("corrupt.xmlb");
+
+        // Nodes of one child each, far deeper than any stack
+        Files.write(bin, nested(2000000));
+        expectBinaryFailure(errors, "2000000 deep", bin);
+
+        // The deepest allowed must load on a thread with a 1MB stack, which
+        // is the default on Windows
+        Files.write(bin, nested(2048));
+        String[] result = new String[1];
+        Thread t = new Thread(null, () ->
+            {
+                try (OffHeapXML doc = OffHeapXML.loadBinary(bin))
+                {
+                    XMLStruct.loadBinary(bin);
+                    result[0] = (doc == null) ? "off-heap load failed" : null;
+                }
+                catch (Throwable e)
+                {
+                    result[0] = e.toString();
+                }
+            }, "deep load", 1 << 20);
+        t.start();
+        t.join();
+        if (result[0] != null)
+            errors.add("2048 deep: " + result[0]);
+
+        Files.write(bin, nested(2049));
+        expectBinaryFailure(errors, "2049 deep", bin);
+
+        // Every truncation of a real sample
+        XMLCorpus.Sample s = XMLCorpus.generate(XMLCorpus.Shape.MIXED, 0, 40);
+        Path whole = dir.resolve("whole.xmlb");
+        s.tree.saveToBinary(whole);
+        byte[] bytes = Files.readAllBytes(whole);
+        for (int len = 0; len < bytes.length; ++len)
+        {
+            Files.write(bin, Arrays.copyOf(bytes, len));
+            expectBinaryFailure(errors, "truncated to " + len, bin);
+        }
+
+        report("corrupt binaries", errors);
+    }
+
+    // A binary file of nodes named "a", each the only child of the last
+    private static byte[] nested(int depth)
+    {
+        byte[] header = {'X', 'M', 'L', 'B', 1, 1, 1, 'a'};
+        byte[] bytes = Arrays.copyOf(header, header.length + depth * 4);
+        for (int i = 0; i < depth; ++i)
+        {
+            int at = header.length + i * 4;
+            bytes[at] = 0;                           // name
+            bytes[at + 1] = 0;                       // attributes
+            bytes[at + 2] = (byte)(i + 1 < depth ? 1 : 0);  // children
+            bytes[at + 3] = 0;                       // element tag
+        }
+
+        return Arrays.copyOf(bytes, bytes.length - 1);
+    }
+
+    private static void expectBinaryFailure(List<String> errors, String what, Path bin)
+    {
+        for (int mode = 0; mode < 2; ++mode)
+        {
+            String where = what + (mode == 0 ? " heap" : " off-heap");
+            try
+            {
+                if (mode == 0)
+                    XMLStruct.loadBinary(bin);
+                else
+                    OffHeapXML.loadBinary(bin).close();
+
+                errors.add(where + ": loaded");
+            }
+            catch (XMLStruct.BadSyntaxException e)
+            {
+                if (e.getKind() != XMLStruct.BadSyntaxException.Kind.BINARY_FORMAT)
+                    errors.add(where + ": failed with " + e.getKind());
+            }
+            catch (RuntimeException | StackOverflowError e)
+            {
+                errors.add(where + ": " + e);
+            }
+        }
+    }
+
+    // Off-heap
+
+    // close must free direct memory without waiting for a collection, and
+    // nodes must read typed values like XMLStruct does
+    private void offHeap(int size) throws Exception
+    {
+        List<String> errors = new ArrayList<String>();
+
+        XMLStruct typed = XMLStruct.parseFromString(
+            "<a i=\"-7\" l=\"12345678901\" d=\"2.5e3\" b=\"true\" f=\"1f\">" +
+            "<i>42</i><l>-9876543210</l><d>0.125</d><b>false</b><x>0x10</x></a>");
+        try (OffHeapXML doc = OffHeapXML.copyOf(typed))
+        {
+            OffHeapXML.Node root = doc.getRoot();
+            boolean[] ok = new boolean[1];
+            boolean[] okRef = new boolean[1];
+
+            for (String name : new String[] {"i", "l", "d", "b", "f", "missing"})
+            {
+                String where = "attribute " + name;
+                if (root.getAttribInt(name, -1, ok) != typed.getAttribInt(name, -1, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as int");
+                if (root.getAttribLong(name, -1, ok) != typed.getAttribLong(name, -1, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as long");
+                if (root.getAttribDouble(name, -1, ok) != typed.getAttribDouble(name, -1, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as double");
+                if (root.getAttribBoolean(name, false, ok) != typed.getAttribBoolean(name, false, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as boolean");
+            }
+
+            for (int i = 0; i < typed.getNumChildren(); ++i)
+            {
+                OffHeapXML.Node node = root.getChildElement(i);
+                XMLStruct ref = typed.getChildElement(i);
+                String where = "child " + ref.getName();
+
+                if (node.getChildInt(-1, ok) != ref.getChildInt(-1, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as int");
+                if (node.getChildLong(-1, ok) != ref.getChildLong(-1, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as long");
+                if (node.getChildDouble(-1, ok) != ref.getChildDouble(-1, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as double");
+                if (node.getChildBoolean(false, ok) != ref.getChildBoolean(false, okRef) || ok[0] != okRef[0])
+                    errors.add(where + " as boolean");
+            }
+        }
+
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+        {
+            if (pool.getName().equals("direct"))
+                direct = pool;
+        }
+
+        XMLStruct tree = XMLCorpus.generate(XMLCorpus.Shape.MIXED, size, size).tree;
+        long before = direct.getMemoryUsed();
+        OffHeapXML doc = OffHeapXML.copyOf(tree);
+        long used = direct.getMemoryUsed() - before;
+        OffHeapXML.Node root = doc.getRoot();
+
+        doc.close();
+        long left = direct.getMemoryUsed() - before;
+
+        System.out.printf("     off-heap %dKB stored in %dKB of direct memory, %dKB left after close%n",
+                          doc.getSize() >> 10, used >> 10, left >> 10);
+
+        if (used < doc.getSize())
+            errors.add("only " + used + " bytes of direct memory for " + doc.getSize() + " stored");
+        if (left > 0)
+            errors.add(left + " bytes of direct memory still used after close");
+
+        try
+        {
+            root.getName();
+            errors.add("node readable after close");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+
+        // close must wait for a read in flight, then fail every later one
+        OffHeapXML held = OffHeapXML.copyOf(tree);
+        OffHeapXML.Node heldRoot = held.getRoot();
+        long stamp = held.beginRead();
+        Thread closer = new Thread(held::close);
+        closer.start();
+        closer.join(200);
+        if (!closer.isAlive())
+            errors.add("close returned while a read was in flight");
+        held.endRead(stamp);
+        closer.join();
+
+        try
+        {
+            heldRoot.getNumChildren();
+            errors.add("node readable after a waiting close");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+
+        // Readers racing close must only ever see the document closed. The
+        // text spans several chunks to widen the window, and refilling fresh
+        // direct memory straight after close makes a read of freed memory
+        // return wrong text rather than pass by luck.
+        String text = "x".repeat(3 << 22);
+        XMLStruct race = new XMLStruct("race");
+        race.addChild(text);
+        byte[] fill = new byte[1 << 22];
+        Arrays.fill(fill, (byte)'y');
+
+        for (int round = 0; round < 20 && errors.isEmpty(); ++round)
+        {
+            OffHeapXML shared = OffHeapXML.copyOf(race);
+            CountDownLatch started = new CountDownLatch(4);
+            List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+            List<Thread> readers = new ArrayList<Thread>();
+
+            for (int i = 0; i < 4; ++i)
+            {
+                Thread t = new Thread(() ->
+                {
+                    started.countDown();
+                    try
+                    {
+                        while (true)
+                        {
+                            if (!text.equals(shared.getRoot().getChildString()))
+                                failures.add("read racing close returned wrong text");
+                        }
+                    }
+                    catch (IllegalStateException e)
+                    {
+                    }
+                    catch (Throwable e)
+                    {
+                        failures.add("read racing close threw " + e);
+                    }
+                });
+                t.start();
+                readers.add(t);
+            }
+
+            started.await();
+            Thread.sleep(round % 5);
+            shared.close();
+
+            for (int i = 0; i < 4; ++i)
+                ByteBuffer.allocateDirect(1 << 22).put(fill);
+
+            for (Thread t : readers)
+                t.join();
+
+            errors.addAll(new ArrayList<String>(failures).subList(0, Math.min(failures.size(), 5)));
+        }
+
+        report("off-heap", errors);
+    }
+
+    // Helpers
+
+    private static void compare(List<String> errors, String where, XMLStruct expected, XMLStruct actual)
+    {
+        String diff = (actual == null) ? "no tree" : diff(expected, actual, "");
+        if (diff != null)
+            errors.add(where + ": " + diff);
+    }
+
+    // Path and description of the first difference, or null
+    private static String diff(XMLStruct a, XMLStruct b, String path)
+    {
+        path = path + "/" + a.getName();
+
+        if (!a.getName().equals(b.getName()))
+            return path + ": name " + b.getName();
+
+        if (a.getNumAttribs() != b.getNumAttribs())
+            return path + ": " + b.getNumAttribs() + " attributes, expected " + a.getNumAttribs();
+
+        for (int i = 0; i < a.getNumAttribs(); ++i)
+        {
+            if (!a.getAttribNameFromIndex(i).equals(b.getAttribNameFromIndex(i)) ||
+                !a.getAttribValueFromIndex(i).equals(b.getAttribValueFromIndex(i)))
+                return path + ": attribute " + b.getAttribNameFromIndex(i) + "=\"" + b.getAttribValueFromIndex(i) +
+                       "\", expected " + a.getAttribNameFromIndex(i) + "=\"" + a.getAttribValueFromIndex(i) + "\"";
+        }
+
+        if (a.getNumChildren() != b.getNumChildren())
+            return path + ": " + b.getNumChildren() + " children, expected " + a.getNumChildren();
+
+        for (int i = 0; i < a.getNumChildren(); ++i)
+        {
+            XMLStruct x = a.getChildElement(i);
+            XMLStruct y = b.getChildElement(i);
+
+            if ((x == null) != (y == null))
+                return path + ": child " + i + " is " + (y == null ? "text" : "an element");
+
+            if (x == null)
+            {
+                if (!a.getChildString(i).equals(b.getChildString(i)))
+                    return path + ": text " + i + " \"" + b.getChildString(i) + "\", expected \"" + a.getChildString(i) + "\"";
+            }
+            else
+            {
+                String d = diff(x, y, path + "[" + i + "]");
+                if (d != null)
+                    return d;
+            }
+        }
+
+        return null;
+    }
+
+    private void report(String name, List<String> errors)
+    {
+        if (errors.isEmpty())
+        {
+            System.out.println("ok   " + name);
+            return;
+        }
+
+        ++failures;
+        System.out.println("FAIL " + name);
+        for (int i = 0; i < errors.size() && i < 10; ++i)
+        {
+            // Messages can quote whole inputs
+            String err = errors.get(i);
+            if (err.length() > 300)
+                err = err.substring(0, 300) + "...";
+            System.out.println("     " + err);
+        }
+        if (errors.size() > 10)
+            System.out.println("     ... " + (errors.size() - 10) + " more");
+    }
+
+    private void cleanUp()
+    {
+        File[] files = dir.toFile().listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+                f.delete();
+        }
+        dir.toFile().delete();
+    }
+}
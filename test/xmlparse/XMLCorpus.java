@@ -0,0 +1,392 @@
+package xmlparse;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+// Deterministic synthetic documents for checking and benchmarking the parser
+//
+// Each sample is generated from a shape, a seed and a size, and comes with
+// the tree it must parse to (with whitespace kept, as parseFromString
+// does), so parse modes can be checked against both the reference parse
+// and the intended tree. The same arguments always give the same sample.
+//
+// Text is broken into lines only where the parser allows it (inside text,
+// comments and whitespace between attributes), so splitLines gives the
+// line-at-a-time input that parseFromFile and streams produce.
+public class XMLCorpus
+{
+    public enum Shape
+    {
+        DEEP,        // one long chain of nested elements
+        WIDE,        // a root with many small children
+        ATTRIBUTES,  // elements with dozens of attributes
+        ESCAPES,     // escaped quotes, backslashes, tabs and newlines
+        COMMENTS,    // comments between, inside and across lines of content
+        MIXED        // all of the above
+    }
+
+    public static class Sample
+    {
+        public final Shape shape;
+        public final long seed;
+        public final String text;
+        public final XMLStruct tree;
+
+        private Sample(Shape _shape, long _seed, String _text, XMLStruct _tree)
+        {
+            shape = _shape;
+            seed = _seed;
+            text = _text;
+            tree = _tree;
+        }
+    }
+
+    private final Shape shape;
+    private final Random rand;
+    private final StringBuilder out;
+    private int budget;
+
+    private XMLCorpus(Shape _shape, long seed, int size)
+    {
+        shape = _shape;
+        rand = new Random(seed);
+        out = new StringBuilder();
+        budget = size;
+    }
+
+    // A document of roughly size nodes
+    public static Sample generate(Shape shape, long seed, int size)
+    {
+        XMLCorpus gen = new XMLCorpus(shape, seed, Math.max(size, 1));
+        XMLStruct tree = gen.element(0);
+        return new Sample(shape, seed, gen.out.toString(), tree);
+    }
+
+    // Splits text into lines that keep their '\n', like parseFromFile reads
+    public static CStream<String> splitLines(String text)
+    {
+        CStream<String> stream = new CStream<String>();
+
+        int start = 0;
+        for (int nl = text.indexOf('\n'); nl >= 0; nl = text.indexOf('\n', start))
+        {
+            stream.add(text.substring(start, nl + 1));
+            start = nl + 1;
+        }
+
+        if (start < text.length())
+            stream.add(text.substring(start));
+
+        return stream;
+    }
+
+    // A document of about the given number of characters that is produced
+    // line by line as the parser reads it, so it is never held in memory.
+    // It is mostly comments, with an <item> every so often, and parses to
+    // a root holding getItemCount items. Lines added to it come after the
+    // generated document, as they would in any other stream.
+    public static LineStream stream(long seed, long chars)
+    {
+        return new LineStream(seed, chars);
+    }
+
+    public static class LineStream extends CStream<String>
+    {
+        private final Random rand;
+        private final long target;
+        private final StringBuilder line;
+        private final LinkedList<String> added;
+
+        private long produced;
+        private int items;
+        private boolean done;
+        private String front;
+
+        private LineStream(long seed, long chars)
+        {
+            rand = new Random(seed);
+            target = chars;
+            line = new StringBuilder();
+            added = new LinkedList<String>();
+
+            produced = 0;
+            items = 0;
+            done = false;
+            front = null;
+        }
+
+        // Items written so far, all of them once the stream is drained
+        public int getItemCount()
+        {
+            return items;
+        }
+
+        public long getCharCount()
+        {
+            return produced;
+        }
+
+        public CStream<String> add(String t)
+        {
+            added.addLast(t);
+            return this;
+        }
+
+        public String get()
+        {
+            String str = peek();
+            front = null;
+            return str;
+        }
+
+        public String peek()
+        {
+            if (front == null)
+                front = done ? added.pollFirst() : nextLine();
+            return front;
+        }
+
+        public void switchFront(String t)
+        {
+            front = t;
+        }
+
+        private String nextLine()
+        {
+            line.setLength(0);
+
+            if (produced == 0)
+            {
+                line.append("<stream>");
+            }
+            else if (produced >= target)
+            {
+                line.append("</stream>");
+                done = true;
+            }
+            else if (rand.nextInt(64) == 0)
+            {
+                line.append("<item n=\"").append(items++).append("\">").append(rand.nextLong()).append("</item>");
+            }
+            else
+            {
+                line.append("<!-- ");
+                int n = 40 + rand.nextInt(200);
+                for (int i = 0; i < n; ++i)
+                    line.append((char)('a' + rand.nextInt(26)));
+                line.append(" -->");
+            }
+
+            line.append('\n');
+            produced += line.length();
+            return line.toString();
+        }
+    }
+
+    // Private
+
+    // Nesting outside of DEEP, which keeps large samples bushy rather than
+    // spending the whole budget on the first branch
+    private static final int MAX_DEPTH = 8;
+
+    private static final String NAME_START = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_";
+    private static final String NAME_CHARS = NAME_START + "0123456789-.";
+    private static final String TEXT_CHARS = "abcdefghijklmnopqrstuvwxyz 0123456789.,;:!?()[]{}=+*&%$#@~";
+    private static final String ESCAPE_CHARS = "\\\"'\n\t>/&=";
+
+    private boolean is(Shape s)
+    {
+        return shape == s || (shape == Shape.MIXED && rand.nextInt(4) == 0);
+    }
+
+    private XMLStruct element(int depth)
+    {
+        --budget;
+
+        String name = name();
+        XMLStruct xml = new XMLStruct(name);
+
+        comment();
+        out.append('<').append(name);
+
+        int numAttribs = (shape == Shape.ATTRIBUTES) ? 10 + rand.nextInt(40) : rand.nextInt(3);
+        if (shape == Shape.MIXED && rand.nextInt(8) == 0)
+            numAttribs += rand.nextInt(30);
+
+        for (int i = 0; i < numAttribs; ++i)
+        {
+            // Attribute names are unique within an element
+            String att = name() + i;
+            String val = is(Shape.ESCAPES) ? escapeText(rand.nextInt(24)) : plainText(rand.nextInt(12));
+            xml.addAttribute(att, val);
+
+            out.append(rand.nextInt(16) == 0 ? "\n  " : " ");
+            out.append(att).append("=\"");
+            appendValue(val);
+            out.append('"');
+        }
+
+        out.append('>');
+
+        // Children alternate between text and elements, since adjacent text
+        // children can't be told apart once written
+        int numChildren = children(depth);
+        boolean prevText = false;
+        for (int i = 0; i < numChildren && budget > 0; ++i)
+        {
+            if (!prevText && rand.nextInt(3) == 0)
+            {
+                text(xml);
+                prevText = true;
+            }
+            else
+            {
+                xml.addChild(element(depth + 1));
+                prevText = false;
+            }
+        }
+
+        if (!prevText && rand.nextInt(4) == 0)
+            text(xml);
+
+        comment();
+        out.append("</").append(name).append('>');
+        return xml;
+    }
+
+    private int children(int depth)
+    {
+        switch (shape)
+        {
+            case DEEP:
+                return 1;
+            case WIDE:
+                return depth == 0 ? budget : rand.nextInt(2);
+            default:
+                if (depth == 0)
+                    return budget;
+                return (depth < MAX_DEPTH) ? rand.nextInt(Math.min(budget, 6) + 1) : 0;
+        }
+    }
+
+    private void text(XMLStruct xml)
+    {
+        --budget;
+
+        int len = 1 + rand.nextInt(40);
+        String text = is(Shape.ESCAPES) ? escapeText(len) : plainText(len);
+
+        // Trailing backslashes would escape the next tag
+        while (text.endsWith("\\"))
+            text = text.substring(0, text.length() - 1) + "x";
+
+        xml.addChild(text);
+
+        // Comments inside text are cut out, leaving the text whole
+        int cut = rand.nextInt(text.length() + 1);
+        if (shape == Shape.COMMENTS || shape == Shape.MIXED)
+        {
+            out.append(text, 0, cut);
+            comment();
+            out.append(text, cut, text.length());
+        }
+        else
+        {
+            out.append(text);
+        }
+    }
+
+    private void comment()
+    {
+        if (!is(Shape.COMMENTS) || rand.nextInt(3) != 0)
+            return;
+
+        out.append("<!--");
+        int len = rand.nextInt(60);
+        for (int i = 0; i < len; ++i)
+        {
+            switch (rand.nextInt(12))
+            {
+                case 0:
+                    out.append('\n');
+                    break;
+                case 1:
+                    out.append("<a b=\"c\">");
+                    break;
+                case 2:
+                    out.append("--");
+                    break;
+                default:
+                    out.append(TEXT_CHARS.charAt(rand.nextInt(TEXT_CHARS.length())));
+            }
+        }
+        out.append("-->");
+    }
+
+    private String name()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(NAME_START.charAt(rand.nextInt(NAME_START.length())));
+
+        int len = rand.nextInt(8);
+        for (int i = 0; i < len; ++i)
+            sb.append(NAME_CHARS.charAt(rand.nextInt(NAME_CHARS.length())));
+
+        // Names starting with "xml" are reserved
+        if (sb.length() >= 3 && sb.substring(0, 3).equalsIgnoreCase("xml"))
+            sb.setCharAt(0, '_');
+
+        return sb.toString();
+    }
+
+    private String plainText(int len)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; ++i)
+        {
+            if (rand.nextInt(30) == 0)
+                sb.append('\n');
+            else
+                sb.append(TEXT_CHARS.charAt(rand.nextInt(TEXT_CHARS.length())));
+        }
+
+        return sb.toString();
+    }
+
+    private String escapeText(int len)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < len; ++i)
+        {
+            String from = (i % 2 == 0) ? ESCAPE_CHARS : TEXT_CHARS;
+            sb.append(from.charAt(rand.nextInt(from.length())));
+        }
+
+        return sb.toString();
+    }
+
+    // Same escapes as XMLWriter
+    private void appendValue(String val)
+    {
+        for (int i = 0; i < val.length(); ++i)
+        {
+            char c = val.charAt(i);
+            switch (c)
+            {
+                case '\\':
+                case '"':
+                case '\'':
+                    out.append('\\').append(c);
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}